@@ -0,0 +1,176 @@
+package id.my.nexcaise.ncmodloader;
+
+import android.content.Context;
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Resolved load plan: which mods to load, in which order, and everything
+ * staging produced for them. Persisted as a small binary snapshot keyed by a
+ * fingerprint of the mods directory and ncmodloader_config.json, so an
+ * unchanged setup can be loaded without scanning, extracting or parsing JSON.
+ */
+public final class LoadPlan {
+
+    private static final int MAGIC = 0x4E434D50; // "NCMP"
+    private static final int VERSION = 2;
+
+    public static final int FLAG_NATIVE = 1;
+    public static final int FLAG_ASSETS = 1 << 1;
+    public static final int FLAG_CUSTOM_PACK = 1 << 2;
+    public static final int FLAG_NCM_V2 = 1 << 3;
+
+    private final long fingerprint;
+    private final List<Entry> entries;
+    private final Map<String, String> logLevels;
+
+    public LoadPlan(long fingerprint, List<Entry> entries) {
+        this(fingerprint, entries, Collections.<String, String>emptyMap());
+    }
+
+    public LoadPlan(long fingerprint, List<Entry> entries, Map<String, String> logLevels) {
+        this.fingerprint = fingerprint;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        this.logLevels = Collections.unmodifiableMap(new LinkedHashMap<>(logLevels));
+    }
+
+    public long getFingerprint() { return fingerprint; }
+    public List<Entry> getEntries() { return entries; }
+    /** "log_level" of each mod in ncmodloader_config.json, by mod name. */
+    public Map<String, String> getLogLevels() { return logLevels; }
+
+    public static File file(Context ctx) {
+        return new File(ctx.getDir("ncmodloader_plan", Context.MODE_PRIVATE), "load_plan.bin");
+    }
+
+    /**
+     * Fingerprint of every .ncm in the mods directory (name, size, mtime) and of
+     * the config contents. Costs one directory listing and one small read.
+     */
+    public static long fingerprint(File modsDir, File configFile) throws IOException {
+        MessageDigest md = Utils.sha256();
+        md.update((byte) VERSION);
+        File[] mods = modsDir.listFiles();
+        if (mods != null) {
+            Arrays.sort(mods);
+            for (File mod : mods) {
+                if (!mod.getName().endsWith(".ncm")) continue;
+                md.update(mod.getName().getBytes("UTF-8"));
+                md.update(longBytes(mod.length()));
+                md.update(longBytes(mod.lastModified()));
+            }
+        }
+        md.update((byte) 0);
+        if (configFile.exists()) md.update(Utils.readAllBytes(configFile));
+
+        byte[] d = md.digest();
+        long fp = 0;
+        for (int i = 0; i < 8; i++) fp = (fp << 8) | (d[i] & 0xff);
+        return fp;
+    }
+
+    /**
+     * Reads the snapshot if it matches {@code fingerprint} and everything it
+     * points at still exists; returns null otherwise.
+     */
+    public static LoadPlan read(File file, long fingerprint) {
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if (in.readLong() != fingerprint) return null;
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Entry e = new Entry(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt(),
+                    readNullable(in), readNullable(in), readNullable(in));
+                if (!e.isStaged()) {
+                    Logger.get().i("Load plan is stale, staged files of " + e.name + " are gone");
+                    return null;
+                }
+                entries.add(e);
+            }
+            int levelCount = in.readInt();
+            Map<String, String> logLevels = new LinkedHashMap<>();
+            for (int i = 0; i < levelCount; i++) logLevels.put(in.readUTF(), in.readUTF());
+            return new LoadPlan(fingerprint, entries, logLevels);
+        } catch (IOException e) {
+            Logger.get().w("Failed to read load plan, replanning: " + e);
+            return null;
+        }
+    }
+
+    public void write(File file) throws IOException {
+        File tmp = Utils.tempFileFor(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(entries.size());
+            for (Entry e : entries) {
+                out.writeUTF(e.name);
+                out.writeUTF(e.jarPath);
+                out.writeUTF(e.mainClass);
+                out.writeInt(e.flags);
+                writeNullable(out, e.nativeDir);
+                writeNullable(out, e.assetPath);
+                writeNullable(out, e.packUuid);
+            }
+            out.writeInt(logLevels.size());
+            for (Map.Entry<String, String> e : logLevels.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+        }
+        Utils.replaceFile(tmp, file);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static byte[] longBytes(long v) {
+        byte[] b = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            b[i] = (byte) v;
+            v >>>= 8;
+        }
+        return b;
+    }
+
+    /** One staged mod. Paths are absolute; optional parts are null when absent. */
+    public static final class Entry {
+        public final String name;
+        public final String jarPath;
+        public final String mainClass;
+        public final int flags;
+        public final String nativeDir;
+        public final String assetPath;
+        public final String packUuid;
+
+        public Entry(String name, String jarPath, String mainClass, int flags,
+                     String nativeDir, String assetPath, String packUuid) {
+            this.name = name;
+            this.jarPath = jarPath;
+            this.mainClass = mainClass;
+            this.flags = flags;
+            this.nativeDir = nativeDir;
+            this.assetPath = assetPath;
+            this.packUuid = packUuid;
+        }
+
+        public boolean has(int flag) { return (flags & flag) != 0; }
+
+        boolean isStaged() {
+            if (!new File(jarPath).exists()) return false;
+            // "<package>!/lib" lives inside the jar checked above
+            if (nativeDir != null && !nativeDir.contains("!/") && !new File(nativeDir).isDirectory()) return false;
+            return assetPath == null || new File(assetPath).exists();
+        }
+    }
+}
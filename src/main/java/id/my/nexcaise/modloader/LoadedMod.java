@@ -0,0 +1,36 @@
+package id.my.nexcaise.ncmodloader;
+
+/**
+ * A mod whose onLoad has run. Holds the only loader-side strong references to
+ * its class loader and main class; {@link ModManager#unload(String)} drops them.
+ */
+public final class LoadedMod {
+    private final LoadPlan.Entry entry;
+    private final long loadedAt;
+    private final ModResources resources;
+    private volatile ClassLoader classLoader;
+    private volatile Class<?> mainClass;
+
+    LoadedMod(LoadPlan.Entry entry, ModResources resources, ClassLoader classLoader, Class<?> mainClass) {
+        this.entry = entry;
+        this.resources = resources;
+        this.classLoader = classLoader;
+        this.mainClass = mainClass;
+        this.loadedAt = System.currentTimeMillis();
+    }
+
+    public String getName() { return entry.name; }
+    public LoadPlan.Entry getEntry() { return entry; }
+    public long getLoadedAt() { return loadedAt; }
+    public ModResources getResources() { return resources; }
+
+    /** Null once the mod has been unloaded. */
+    public ClassLoader getClassLoader() { return classLoader; }
+    public Class<?> getMainClass() { return mainClass; }
+    public boolean isLoaded() { return classLoader != null; }
+
+    void release() {
+        classLoader = null;
+        mainClass = null;
+    }
+}
@@ -0,0 +1,318 @@
+package id.my.nexcaise.ncmodloader;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rate limiting and repeat collapsing used by {@link Logger}.
+ *
+ * Every (level, tag) pair is a {@link Channel}: a token bucket for the tag, a
+ * smaller one per call site, and the repeat windows of the messages logged
+ * through it. A call site is told apart by its message with digit runs
+ * collapsed, so one line logging a counter cannot use up the budget of
+ * everything else sharing the tag. Loggers keep their channels, so a call
+ * costs one map lookup by message and a few CASes, with no allocation and no
+ * locking. Summaries for suppressed lines are logged by a sweep on
+ * {@link ModExecutors#scheduler()}, started the first time a line is dropped.
+ */
+final class LogLimiter {
+
+    static final long PASS = 0;
+    static final long DROP = -1;
+
+    // cap on tracked keys, callers logging unbounded distinct messages just reset the table
+    static final int MAX_KEYS = 2048;
+    // call site buckets per channel; sites hashing to the same slot share one
+    static final int SITE_SLOTS = 256;
+    // only the start of a message is hashed, enough to tell call sites apart
+    private static final int SITE_CHARS = 96;
+
+    private final long origin = System.nanoTime();
+    // by level, then by final tag; only consulted when a logger has no cached channel
+    private final List<ConcurrentHashMap<String, Channel>> channels = new ArrayList<>();
+    private final ConcurrentHashMap<String, AtomicLong> suppressedByTag = new ConcurrentHashMap<>();
+    private volatile ScheduledFuture<?> sweepTask;
+
+    private volatile Limits limits = Limits.defaults();
+
+    LogLimiter(){
+        for (int i = 0; i < Logger.Level.values().length; i++) channels.add(new ConcurrentHashMap<String, Channel>());
+    }
+
+    /** Channel of (level, tag); {@code prefix} is the tag prefix {@code tag} was built from. */
+    Channel channel(Logger.Level level, String prefix, String tag){
+        ConcurrentHashMap<String, Channel> byTag = channels.get(level.ordinal());
+        Channel c = byTag.get(tag);
+        if (c != null && c.prefix == prefix) return c;
+        if (byTag.size() >= MAX_KEYS) byTag.clear();
+        Channel created = new Channel(level, prefix, tag);
+        if (c != null) {
+            byTag.put(tag, created);
+            return created;
+        }
+        c = byTag.putIfAbsent(tag, created);
+        return c != null ? c : created;
+    }
+
+    /**
+     * @return {@link #PASS} to log the line, {@link #DROP} to skip it, or the
+     * number of identical lines collapsed since it was last printed.
+     */
+    long acquire(Channel c, String message){
+        Limits l = limits;
+        long now = System.nanoTime() - origin;
+
+        if (l.repeatWindowNs <= 0) return takeTokens(l, c, message, now) ? PASS : DROP;
+
+        Repeat r = c.repeats.get(message);
+        if (r == null) {
+            if (c.repeats.size() >= MAX_KEYS) c.repeats.clear();
+            r = new Repeat(message, now + l.repeatWindowNs);
+            Repeat raced = c.repeats.putIfAbsent(message, r);
+            if (raced == null) return takeTokens(l, c, message, now) ? PASS : DROP;
+            r = raced;
+        }
+        if (now < r.windowEnd) {
+            r.suppressed.incrementAndGet();
+            suppressed(c.tag, false);
+            return DROP;
+        }
+        // a denied token must not lose the collapsed count, the sweep still reports it
+        if (!takeTokens(l, c, message, now)) return DROP;
+        r.windowEnd = now + l.repeatWindowNs;
+        return r.suppressed.getAndSet(0);
+    }
+
+    // call site first, a line its site drops does not cost the tag a token
+    private boolean takeTokens(Limits l, Channel c, String message, long now){
+        int level = c.level.ordinal();
+        if (!conforms(c.tat, site(message), l.siteIntervalNs[level], l.siteBurstNs[level], now)) {
+            c.siteDropped.incrementAndGet();
+            suppressed(c.tag, true);
+            return false;
+        }
+        if (!conforms(c.tat, SITE_SLOTS, l.intervalNs[level], l.burstNs[level], now)) {
+            c.dropped.incrementAndGet();
+            suppressed(c.tag, true);
+            return false;
+        }
+        return true;
+    }
+
+    // GCRA: tat is the theoretical arrival time of the next conforming call
+    private static boolean conforms(AtomicLongArray tats, int i, long interval, long burst, long now){
+        if (interval <= 0) return true;
+        for (;;) {
+            long tat = tats.get(i);
+            long base = Math.max(tat, now);
+            if (base - now > burst) return false;
+            if (tats.compareAndSet(i, tat, base + interval)) return true;
+        }
+    }
+
+    // bucket of the message's call site: its text with every run of digits as one '#'
+    static int site(String message){
+        int h = 0;
+        boolean digits = false;
+        for (int i = 0, n = Math.min(message.length(), SITE_CHARS); i < n; i++) {
+            char ch = message.charAt(i);
+            boolean digit = ch >= '0' && ch <= '9';
+            if (digit && digits) continue;
+            h = 31 * h + (digit ? '#' : ch);
+            digits = digit;
+        }
+        h ^= h >>> 16;
+        return h & (SITE_SLOTS - 1);
+    }
+
+    private void suppressed(String tag, boolean rateLimited){
+        AtomicLong c = suppressedByTag.get(tag);
+        if (c == null) {
+            AtomicLong created = new AtomicLong();
+            c = suppressedByTag.putIfAbsent(tag, created);
+            if (c == null) c = created;
+        }
+        c.incrementAndGet();
+        Metrics.get().loader().counter(rateLimited ? "log.suppressed.rate" : "log.suppressed.repeat").inc();
+        ScheduledFuture<?> task = sweepTask;
+        if (task == null || task.isDone()) startSweep();
+    }
+
+    // again after ModExecutors.shutdown() cancelled the previous one
+    private synchronized void startSweep(){
+        ScheduledFuture<?> task = sweepTask;
+        if (task != null && !task.isDone()) return;
+        long period = Math.max(limits.repeatWindowNs, 1_000_000_000L);
+        try {
+            sweepTask = ModExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override public void run() {
+                    ModExecutors.io().execute(new Runnable() {
+                        @Override public void run() {
+                            List<Summary> summaries = sweep();
+                            for (int i = 0; i < summaries.size(); i++) Logger.summary(summaries.get(i));
+                        }
+                    });
+                }
+            }, period, period, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // pools shutting down, the next dropped line tries again
+        }
+    }
+
+    /** Collects summaries of lines suppressed in windows that have already closed. */
+    List<Summary> sweep(){
+        long now = System.nanoTime() - origin;
+        List<Summary> out = null;
+        for (ConcurrentHashMap<String, Channel> byTag : channels) {
+            for (Channel c : byTag.values()) {
+                for (Iterator<Repeat> it = c.repeats.values().iterator(); it.hasNext(); ) {
+                    Repeat r = it.next();
+                    if (now < r.windowEnd) continue;
+                    long n = r.suppressed.getAndSet(0);
+                    if (n <= 0) {
+                        // quiet since its window closed, forget it
+                        it.remove();
+                        continue;
+                    }
+                    if (out == null) out = new ArrayList<>();
+                    out.add(new Summary(c.level, c.tag, r.message + " (repeated " + n + " times)"));
+                }
+                long n = c.dropped.getAndSet(0);
+                if (n > 0) {
+                    if (out == null) out = new ArrayList<>();
+                    out.add(new Summary(c.level, c.tag, n + " " + c.level.name() + " messages dropped by rate limit"));
+                }
+                n = c.siteDropped.getAndSet(0);
+                if (n > 0) {
+                    if (out == null) out = new ArrayList<>();
+                    out.add(new Summary(c.level, c.tag, n + " " + c.level.name() + " messages dropped by call site rate limit"));
+                }
+            }
+        }
+        return out == null ? Collections.<Summary>emptyList() : out;
+    }
+
+    long suppressedTotal(){
+        long total = 0;
+        for (AtomicLong c : suppressedByTag.values()) total += c.get();
+        return total;
+    }
+
+    Map<String, Long> suppressedByTag(){
+        Map<String, Long> out = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> e : suppressedByTag.entrySet()) out.put(e.getKey(), e.getValue().get());
+        return out;
+    }
+
+    synchronized void setRateLimit(Logger.Level level, double perSecond, int burst){
+        Limits l = limits.copy();
+        l.set(l.intervalNs, l.burstNs, level.ordinal(), perSecond, burst);
+        limits = l;
+    }
+
+    synchronized void setCallSiteRateLimit(Logger.Level level, double perSecond, int burst){
+        Limits l = limits.copy();
+        l.set(l.siteIntervalNs, l.siteBurstNs, level.ordinal(), perSecond, burst);
+        limits = l;
+    }
+
+    synchronized void setRepeatWindow(long ms){
+        Limits l = limits.copy();
+        l.repeatWindowNs = Math.max(0, ms) * 1_000_000L;
+        limits = l;
+        if (ms <= 0) {
+            for (ConcurrentHashMap<String, Channel> byTag : channels) {
+                for (Channel c : byTag.values()) c.repeats.clear();
+            }
+        }
+    }
+
+    static final class Summary {
+        final Logger.Level level;
+        final String tag;
+        final String message;
+
+        Summary(Logger.Level level, String tag, String message){
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+        }
+    }
+
+    /** Limiter state of one (level, tag), kept by the loggers that log through it. */
+    static final class Channel {
+        final Logger.Level level;
+        // compared by reference, a new tag prefix means new channels
+        final String prefix;
+        final String tag;
+        // GCRA state per call site slot, the tag's own bucket is the last one
+        final AtomicLongArray tat = new AtomicLongArray(SITE_SLOTS + 1);
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong siteDropped = new AtomicLong();
+        final ConcurrentHashMap<String, Repeat> repeats = new ConcurrentHashMap<>();
+
+        Channel(Logger.Level level, String prefix, String tag){
+            this.level = level;
+            this.prefix = prefix;
+            this.tag = tag;
+        }
+    }
+
+    private static final class Repeat {
+        final String message;
+        final AtomicLong suppressed = new AtomicLong();
+        volatile long windowEnd;
+
+        Repeat(String message, long windowEnd){
+            this.message = message;
+            this.windowEnd = windowEnd;
+        }
+    }
+
+    // replaced as a whole on every change, never mutated after publication
+    private static final class Limits {
+        final long[] intervalNs = new long[Logger.Level.values().length];
+        final long[] burstNs = new long[Logger.Level.values().length];
+        final long[] siteIntervalNs = new long[Logger.Level.values().length];
+        final long[] siteBurstNs = new long[Logger.Level.values().length];
+        long repeatWindowNs;
+
+        // a single call site gets a fifth of its tag's budget
+        static Limits defaults(){
+            Limits l = new Limits();
+            l.repeatWindowNs = 1_000_000_000L;
+            for (Logger.Level level : Logger.Level.values()) {
+                if (level == Logger.Level.NONE) continue;
+                boolean severe = level == Logger.Level.WARN || level == Logger.Level.ERROR;
+                l.set(l.intervalNs, l.burstNs, level.ordinal(), severe ? 20 : 50, severe ? 40 : 100);
+                l.set(l.siteIntervalNs, l.siteBurstNs, level.ordinal(), severe ? 4 : 10, severe ? 8 : 20);
+            }
+            return l;
+        }
+
+        void set(long[] interval, long[] burst, int level, double perSecond, int burstSize){
+            if (perSecond <= 0) {
+                interval[level] = 0;
+                burst[level] = 0;
+            } else {
+                interval[level] = (long) (1_000_000_000L / perSecond);
+                burst[level] = interval[level] * Math.max(0, burstSize - 1);
+            }
+        }
+
+        Limits copy(){
+            Limits l = new Limits();
+            System.arraycopy(intervalNs, 0, l.intervalNs, 0, intervalNs.length);
+            System.arraycopy(burstNs, 0, l.burstNs, 0, burstNs.length);
+            System.arraycopy(siteIntervalNs, 0, l.siteIntervalNs, 0, siteIntervalNs.length);
+            System.arraycopy(siteBurstNs, 0, l.siteBurstNs, 0, siteBurstNs.length);
+            l.repeatWindowNs = repeatWindowNs;
+            return l;
+        }
+    }
+}
@@ -2,8 +2,8 @@ package id.my.nexcaise.ncmodloader;
 
 import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class Logger {
 
@@ -13,20 +13,12 @@ public final class Logger {
         Level(int v){ this.value = v; }
     }
 
-    private static final Logger INSTANCE = new Logger();
+    // Android reflection helpers, shared by every logger
+    private static final boolean hasAndroidLog;
+    private static final Class<?> androidLogClass;
+    private static final Method androidV, androidD, androidI, androidW, androidE;
 
-    // default tag when user doesn't supply tag
-    private String tagPrefix = "NCModloader";
-    private Level minLevel = Level.VERBOSE;
-
-    // Android reflection helpers
-    private final boolean hasAndroidLog;
-    private final Class<?> androidLogClass;
-    private final Method androidV, androidD, androidI, androidW, androidE;
-
-    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault());
-
-    private Logger() {
+    static {
         Class<?> logClass = null;
         Method vMethod = null, dMethod = null, iMethod = null, wMethod = null, eMethod = null;
         boolean found = false;
@@ -51,21 +43,157 @@ public final class Logger {
         androidE = eMethod;
     }
 
+    private static final String ROOT = "";
+    private static final ConcurrentHashMap<String, Logger> CHILDREN = new ConcurrentHashMap<>();
+    private static final LogLimiter limiter = new LogLimiter();
+    private static final ThreadLocal<SimpleDateFormat> sdf = new ThreadLocal<SimpleDateFormat>() {
+        @Override protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault());
+        }
+    };
+
+    // default tag when user doesn't supply tag
+    private static volatile String tagPrefix = "NCModloader";
+    // replaced as a whole, never mutated; guarded by Logger.class for writers
+    private static volatile LevelConfig config = new LevelConfig(Level.VERBOSE, Collections.<String, Level>emptyMap());
+
+    private static final Logger INSTANCE = new Logger(ROOT, null);
+
+    // hierarchical name, "mod/foo.ncm/render"; ROOT for the global logger
+    private final String name;
+    // appended to tagPrefix, null for the global logger
+    private final String tag;
+    // effective Level.value, the only thing read before a message is dropped
+    private volatile int threshold;
+    // limiter channels by level for this logger's own tag, and per call tag; racy
+    // writes are fine, a lost update only means one more lookup in the limiter
+    private final LogLimiter.Channel[] channels = new LogLimiter.Channel[Level.values().length];
+    private final ConcurrentHashMap<String, LogLimiter.Channel[]> tagged = new ConcurrentHashMap<>();
+
+    private Logger(String name, String tag) {
+        this.name = name;
+        this.tag = tag;
+        this.threshold = config.resolve(name).value;
+    }
+
     public static Logger get(){ return INSTANCE; }
 
+    /** Logger of a mod, named {@code mod/<name>}; logcat tag {@code NCModloader-<name without .ncm>}. */
+    public static Logger forMod(String modName){
+        String clean = modName.endsWith(".ncm") ? modName.substring(0, modName.length() - 4) : modName;
+        return child("mod/" + modName, clean);
+    }
+
+    /** Logger for a free-form tag, named {@code tag/<tag>}. */
+    public static Logger forTag(String tag){
+        return child("tag/" + tag, tag);
+    }
+
+    /** Sub-logger of this one, e.g. {@code forMod("foo.ncm").child("render")} is {@code mod/foo.ncm/render}. */
+    public Logger child(String sub){
+        String childName = name.isEmpty() ? sub : name + "/" + sub;
+        return child(childName, tag == null ? sub : tag + "-" + sub);
+    }
+
+    private static Logger child(String name, String tag){
+        Logger l = CHILDREN.get(name);
+        if (l != null) return l;
+        synchronized (Logger.class) {
+            // under the lock so a concurrent config swap cannot miss the new logger
+            l = CHILDREN.get(name);
+            if (l == null) {
+                l = new Logger(name, tag);
+                CHILDREN.put(name, l);
+            }
+            return l;
+        }
+    }
+
+    public String getName(){ return name; }
+
     // Configuration
     public Logger setTagPrefix(String prefix){
-        if (prefix != null) this.tagPrefix = prefix;
+        if (prefix != null) tagPrefix = prefix;
         return this;
     }
 
+    /** Sets the level of this logger and, unless they have their own, of its children. */
     public Logger setMinLevel(Level level){
-        if (level != null) this.minLevel = level;
+        if (level != null) setLevel(name, level);
         return this;
     }
 
     public String getTagPrefix(){ return tagPrefix; }
-    public Level getMinLevel(){ return minLevel; }
+    public Level getMinLevel(){ return Level.values()[threshold - 1]; }
+
+    /** Sets the level of a logger name ("" for the root); null clears it so the parent's applies. */
+    public static void setLevel(String loggerName, Level level){
+        synchronized (Logger.class) {
+            LevelConfig current = config;
+            Map<String, Level> levels = new HashMap<>(current.levels);
+            Level root = current.root;
+            if (ROOT.equals(loggerName)) root = level != null ? level : Level.VERBOSE;
+            else if (level == null) levels.remove(loggerName);
+            else levels.put(loggerName, level);
+            apply(new LevelConfig(root, levels));
+        }
+    }
+
+    /**
+     * Loads per-mod levels from the "log_level" field of ncmodloader_config.json
+     * entries, replacing the mod levels from a previous load. Other levels stay.
+     */
+    public static void loadLevels(Map<String, String> modLevels){
+        synchronized (Logger.class) {
+            LevelConfig current = config;
+            Map<String, Level> levels = new HashMap<>();
+            for (Map.Entry<String, Level> e : current.levels.entrySet()) {
+                if (!e.getKey().startsWith("mod/") || e.getKey().indexOf('/', 4) >= 0) levels.put(e.getKey(), e.getValue());
+            }
+            for (Map.Entry<String, String> e : modLevels.entrySet()) {
+                try {
+                    levels.put("mod/" + e.getKey(), Level.valueOf(e.getValue().trim().toUpperCase(Locale.ROOT)));
+                } catch (IllegalArgumentException ex) {
+                    INSTANCE.w("Unknown log_level '" + e.getValue() + "' for " + e.getKey());
+                }
+            }
+            apply(new LevelConfig(current.root, levels));
+        }
+    }
+
+    private static void apply(LevelConfig next){
+        config = next;
+        INSTANCE.threshold = next.resolve(ROOT).value;
+        for (Logger l : CHILDREN.values()) l.threshold = next.resolve(l.name).value;
+    }
+
+    /**
+     * Token-bucket limit for one level, shared per tag. A non-positive rate
+     * disables limiting for that level.
+     */
+    public Logger setRateLimit(Level level, double perSecond, int burst){
+        if (level != null) limiter.setRateLimit(level, perSecond, burst);
+        return this;
+    }
+
+    /**
+     * Token-bucket limit for one level, per call site within a tag: lines whose
+     * text differs only in numbers count as the same site. A non-positive rate
+     * disables it for that level.
+     */
+    public Logger setCallSiteRateLimit(Level level, double perSecond, int burst){
+        if (level != null) limiter.setCallSiteRateLimit(level, perSecond, burst);
+        return this;
+    }
+
+    /** Identical lines within this window are collapsed into one summary; 0 disables. */
+    public Logger setRepeatWindow(long ms){
+        limiter.setRepeatWindow(ms);
+        return this;
+    }
+
+    public long getSuppressedCount(){ return limiter.suppressedTotal(); }
+    public Map<String, Long> getSuppressedCounts(){ return limiter.suppressedByTag(); }
 
     // Short aliases + full names
     public void v(String msg){ log(Level.VERBOSE, null, msg, null); }
@@ -89,9 +217,47 @@ public final class Logger {
 
     // Internal logging method
     private void log(Level level, String tag, String message, Throwable t){
-        if (level.value < minLevel.value) return;
+        if (level.value < threshold) return;
+        if (message == null) message = "null";
+
+        LogLimiter.Channel channel = channel(level, tag);
+        long collapsed = limiter.acquire(channel, message);
+        if (collapsed == LogLimiter.DROP) return;
+        if (collapsed > 0) message = message + " (repeated " + collapsed + " times)";
+
+        emit(level, channel.tag, message, t);
+    }
+
+    // cached per level and call tag, so the hot path builds no tag strings
+    private LogLimiter.Channel channel(Level level, String callTag){
+        LogLimiter.Channel[] byLevel = channels;
+        if (callTag != null && !callTag.isEmpty()) {
+            byLevel = tagged.get(callTag);
+            if (byLevel == null) {
+                if (tagged.size() >= LogLimiter.MAX_KEYS) tagged.clear();
+                byLevel = new LogLimiter.Channel[Level.values().length];
+                LogLimiter.Channel[] raced = tagged.putIfAbsent(callTag, byLevel);
+                if (raced != null) byLevel = raced;
+            }
+        }
+        String prefix = tagPrefix;
+        LogLimiter.Channel c = byLevel[level.ordinal()];
+        if (c == null || c.prefix != prefix) {
+            String tag = callTag == null || callTag.isEmpty() ? this.tag
+                : this.tag != null ? this.tag + "-" + callTag : callTag;
+            String finalTag = (tag == null || tag.isEmpty()) ? prefix : (prefix + "-" + tag);
+            c = limiter.channel(level, prefix, finalTag);
+            byLevel[level.ordinal()] = c;
+        }
+        return c;
+    }
+
+    // summaries of suppressed lines, from the limiter's sweep
+    static void summary(LogLimiter.Summary s){
+        INSTANCE.emit(s.level, s.tag, s.message, null);
+    }
 
-        String finalTag = (tag == null || tag.isEmpty()) ? tagPrefix : (tagPrefix + "-" + tag);
+    private void emit(Level level, String finalTag, String message, Throwable t){
         String formattedMsg = formatMessage(level, message, t);
 
         if (hasAndroidLog) {
@@ -119,7 +285,7 @@ public final class Logger {
         printToConsole(level, finalTag, formattedMsg, t);
     }
 
-    private Method selectAndroidMethod(Level level){
+    private static Method selectAndroidMethod(Level level){
         switch (level){
             case VERBOSE: return androidV;
             case DEBUG: return androidD;
@@ -142,7 +308,7 @@ public final class Logger {
     }
 
     private String formatMessage(Level level, String msg, Throwable t){
-        String time = sdf.format(new Date());
+        String time = sdf.get().format(new Date());
         String base = String.format(Locale.getDefault(), "%s %s: %s", time, level.name(), msg == null ? "null" : msg);
         if (t != null && (hasAndroidLog == false)) {
             // on non-Android, append stacktrace to message (console)
@@ -183,4 +349,26 @@ public final class Logger {
     public void d(String tag, String msg){ log(Level.DEBUG, tag, msg, null); }
     public void e(String tag, String msg, Throwable t){ log(Level.ERROR, tag, msg, t); }
 
+    private static final class LevelConfig {
+        final Level root;
+        final Map<String, Level> levels;
+
+        LevelConfig(Level root, Map<String, Level> levels){
+            this.root = root;
+            this.levels = Collections.unmodifiableMap(levels);
+        }
+
+        // nearest configured ancestor: "mod/foo.ncm/render" -> "mod/foo.ncm" -> "mod" -> root
+        Level resolve(String name){
+            String n = name;
+            while (!n.isEmpty()) {
+                Level l = levels.get(n);
+                if (l != null) return l;
+                int slash = n.lastIndexOf('/');
+                n = slash < 0 ? ROOT : n.substring(0, slash);
+            }
+            return root;
+        }
+    }
+
 }
@@ -0,0 +1,263 @@
+package id.my.nexcaise.ncmodloader;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.*;
+
+/**
+ * Lightweight metrics registry shared by the loader and mods.
+ *
+ * Counters are backed by {@link LongAdder}, histograms use fixed buckets and
+ * never allocate when recording. Everything is grouped per mod through
+ * {@link #forMod(String)}; the loader itself publishes under {@link #LOADER_SCOPE}.
+ * Snapshots are written as JSON to {@code ModLoader/metrics.json} on an interval.
+ */
+public final class Metrics {
+
+    public static final String LOADER_SCOPE = "ncmodloader";
+
+    // default latency buckets, in microseconds (upper bounds, inclusive)
+    public static final long[] LATENCY_BUCKETS_US = {
+        50, 100, 250, 500,
+        1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+        1_000_000, 2_500_000, 5_000_000, 10_000_000
+    };
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final ConcurrentHashMap<String, Scope> scopes = new ConcurrentHashMap<>();
+    private volatile File snapshotFile = new File(NCModloader.MODLOADER_DIR, "metrics.json");
+    private ScheduledFuture<?> flushTask;
+    private long intervalMs;
+
+    private Metrics() {}
+
+    public static Metrics get(){ return INSTANCE; }
+
+    /** Metrics published by the loader itself. */
+    public Scope loader(){ return forMod(LOADER_SCOPE); }
+
+    /** Returns the (cached) registry scope of a mod, creating it on first use. */
+    public Scope forMod(String mod){
+        if (mod == null || mod.isEmpty()) mod = LOADER_SCOPE;
+        Scope s = scopes.get(mod);
+        if (s != null) return s;
+        Scope created = new Scope(mod);
+        s = scopes.putIfAbsent(mod, created);
+        return s != null ? s : created;
+    }
+
+    /** Drops every metric registered by a mod. */
+    public void removeMod(String mod){
+        if (mod != null) scopes.remove(mod);
+    }
+
+    public Metrics setSnapshotFile(File file){
+        if (file != null) this.snapshotFile = file;
+        return this;
+    }
+
+    public File getSnapshotFile(){ return snapshotFile; }
+
+    /**
+     * Writes a snapshot every {@code ms} milliseconds. Zero or a negative value
+     * stops the periodic writer.
+     */
+    public synchronized Metrics setSnapshotInterval(long ms){
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        intervalMs = Math.max(0, ms);
+        if (intervalMs == 0) return this;
+
+        // the timer only hands off, the file write runs on the shared io pool
+        flushTask = ModExecutors.scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                ModExecutors.io().execute(Metrics.this::writeSnapshotQuietly);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public synchronized long getSnapshotInterval(){ return intervalMs; }
+
+    public JSONObject snapshot(){
+        JSONObject root = new JSONObject();
+        try {
+            root.put("timestamp", System.currentTimeMillis());
+            JSONObject all = new JSONObject();
+            List<String> names = new ArrayList<>(scopes.keySet());
+            Collections.sort(names);
+            for (String name : names) {
+                Scope s = scopes.get(name);
+                if (s != null) all.put(name, s.toJson());
+            }
+            root.put("scopes", all);
+        } catch (JSONException e) {
+            Logger.get().w("Failed to build metrics snapshot: " + e);
+        }
+        return root;
+    }
+
+    /** Writes the current snapshot to {@link #getSnapshotFile()}, replacing the old one. */
+    public void writeSnapshot() throws IOException {
+        File target = snapshotFile;
+        File tmp = Utils.tempFileFor(target);
+        String json;
+        try {
+            json = snapshot().toString(2);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+            w.write(json);
+        }
+        Utils.replaceFile(tmp, target);
+    }
+
+    private void writeSnapshotQuietly(){
+        try {
+            writeSnapshot();
+        } catch (Throwable t) {
+            Logger.get().w("Failed to write metrics snapshot: " + t);
+        }
+    }
+
+    /** Named metrics of a single mod (or of the loader). */
+    public static final class Scope {
+        private final String name;
+        private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+        Scope(String name){ this.name = name; }
+
+        public String getName(){ return name; }
+
+        public Counter counter(String metric){
+            Counter c = counters.get(metric);
+            if (c != null) return c;
+            Counter created = new Counter();
+            c = counters.putIfAbsent(metric, created);
+            return c != null ? c : created;
+        }
+
+        /** Registers (or replaces) a gauge, sampled only when a snapshot is taken. */
+        public void gauge(String metric, Gauge gauge){
+            if (gauge == null) gauges.remove(metric);
+            else gauges.put(metric, gauge);
+        }
+
+        /** Latency histogram with {@link #LATENCY_BUCKETS_US} buckets. */
+        public Histogram histogram(String metric){
+            return histogram(metric, LATENCY_BUCKETS_US);
+        }
+
+        /**
+         * Histogram with custom inclusive upper bounds (must be ascending). Bounds
+         * are fixed by the first registration of a name.
+         */
+        public Histogram histogram(String metric, long[] bounds){
+            Histogram h = histograms.get(metric);
+            if (h != null) return h;
+            Histogram created = new Histogram(bounds);
+            h = histograms.putIfAbsent(metric, created);
+            return h != null ? h : created;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            JSONObject c = new JSONObject();
+            for (Map.Entry<String, Counter> e : counters.entrySet()) c.put(e.getKey(), e.getValue().sum());
+            JSONObject g = new JSONObject();
+            for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+                try {
+                    g.put(e.getKey(), e.getValue().value());
+                } catch (Throwable t) {
+                    // a broken gauge must not break the whole snapshot
+                    g.put(e.getKey(), JSONObject.NULL);
+                }
+            }
+            JSONObject h = new JSONObject();
+            for (Map.Entry<String, Histogram> e : histograms.entrySet()) h.put(e.getKey(), e.getValue().toJson());
+            o.put("counters", c);
+            o.put("gauges", g);
+            o.put("histograms", h);
+            return o;
+        }
+    }
+
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        public void inc(){ adder.increment(); }
+        public void add(long n){ adder.add(n); }
+        public long sum(){ return adder.sum(); }
+    }
+
+    public interface Gauge {
+        long value();
+    }
+
+    public static final class Histogram {
+        private final long[] bounds;
+        // one slot per bound plus overflow
+        private final AtomicLongArray buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        Histogram(long[] bounds){
+            this.bounds = bounds.clone();
+            for (int i = 1; i < this.bounds.length; i++) {
+                if (this.bounds[i] <= this.bounds[i - 1])
+                    throw new IllegalArgumentException("Histogram bounds must be ascending");
+            }
+            this.buckets = new AtomicLongArray(this.bounds.length + 1);
+        }
+
+        public void record(long value){
+            int idx = Arrays.binarySearch(bounds, value);
+            if (idx < 0) idx = -idx - 1;
+            buckets.incrementAndGet(idx);
+            count.increment();
+            sum.add(value);
+            long m;
+            while (value > (m = max.get())) {
+                if (max.compareAndSet(m, value)) break;
+            }
+        }
+
+        /** Records the time elapsed since {@code startNanos} in microseconds. */
+        public void recordSince(long startNanos){
+            record((System.nanoTime() - startNanos) / 1_000L);
+        }
+
+        public long count(){ return count.sum(); }
+        public long sum(){ return sum.sum(); }
+        public long max(){ long m = max.get(); return m == Long.MIN_VALUE ? 0 : m; }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("count", count());
+            o.put("sum", sum());
+            o.put("max", max());
+            JSONArray arr = new JSONArray();
+            for (int i = 0; i < buckets.length(); i++) {
+                long c = buckets.get(i);
+                if (c == 0) continue;
+                JSONObject b = new JSONObject();
+                b.put("le", i < bounds.length ? (Object) bounds[i] : "inf");
+                b.put("count", c);
+                arr.put(b);
+            }
+            o.put("buckets", arr);
+            return o;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package id.my.nexcaise.ncmodloader;
+
+import android.os.Debug;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A mod's handle on the shared {@link ModExecutors} pools. Every task is
+ * tracked so it can be cancelled when the mod is unloaded, and measured:
+ * queue wait ({@code executor.wait_us}), run time ({@code executor.run_us})
+ * and thread CPU time ({@code executor.cpu_ns}) in the mod's metrics scope.
+ * Exceptions thrown by tasks are logged through the mod's logger.
+ */
+public final class ModExecutor {
+
+    private final String mod;
+    private final Set<Future<?>> pending = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>());
+    private volatile boolean cancelled;
+
+    ModExecutor(String mod) {
+        this.mod = mod;
+    }
+
+    public String getModName() { return mod; }
+
+    public Future<?> submitCpu(Runnable task) {
+        return submit(ModExecutors.cpu(), Executors.callable(task));
+    }
+
+    public <T> Future<T> submitCpu(Callable<T> task) {
+        return submit(ModExecutors.cpu(), task);
+    }
+
+    public Future<?> submitIo(Runnable task) {
+        return submit(ModExecutors.io(), Executors.callable(task));
+    }
+
+    public <T> Future<T> submitIo(Callable<T> task) {
+        return submit(ModExecutors.io(), task);
+    }
+
+    /** Executor view of the cpu pool, e.g. for CompletableFuture. */
+    public Executor cpuExecutor() {
+        return new Executor() {
+            @Override public void execute(Runnable r) { submitCpu(r); }
+        };
+    }
+
+    /** Executor view of the io pool. */
+    public Executor ioExecutor() {
+        return new Executor() {
+            @Override public void execute(Runnable r) { submitIo(r); }
+        };
+    }
+
+    /** Runs on the shared timer thread, keep it short or hand off to cpu/io. */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        checkOpen();
+        return track(ModExecutors.scheduler().schedule(new Tracked<>(Executors.callable(task), unit.toNanos(delay), 0), delay, unit));
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        checkOpen();
+        return track(ModExecutors.scheduler().scheduleAtFixedRate(runnable(new Tracked<>(Executors.callable(task),
+            unit.toNanos(initialDelay), unit.toNanos(period))), initialDelay, period, unit));
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        checkOpen();
+        return track(ModExecutors.scheduler().scheduleWithFixedDelay(runnable(new Tracked<>(Executors.callable(task),
+            unit.toNanos(initialDelay), -unit.toNanos(delay))), initialDelay, delay, unit));
+    }
+
+    /** Tasks submitted or scheduled and not finished yet. */
+    public int getPendingCount() {
+        purgeDone();
+        return pending.size();
+    }
+
+    int cancelAll() {
+        cancelled = true;
+        int count = 0;
+        for (Future<?> f : new ArrayList<>(pending)) {
+            if (f.cancel(true)) count++;
+        }
+        pending.clear();
+        if (count > 0) Logger.forMod(mod).i("Cancelled " + count + " pending tasks");
+        return count;
+    }
+
+    private <T> Future<T> submit(ExecutorService pool, Callable<T> task) {
+        checkOpen();
+        FutureTask<T> future = new FutureTask<T>(new Tracked<>(task, 0, 0)) {
+            @Override protected void done() { pending.remove(this); }
+        };
+        pending.add(future);
+        checkNotCancelledSince(future);
+        try {
+            pool.execute(future);
+        } catch (RejectedExecutionException e) {
+            pending.remove(future);
+            throw e;
+        }
+        return future;
+    }
+
+    private <F extends Future<?>> F track(F future) {
+        purgeDone();
+        pending.add(future);
+        checkNotCancelledSince(future);
+        return future;
+    }
+
+    // cancelAll may have run between checkOpen and adding the future, past its snapshot
+    private void checkNotCancelledSince(Future<?> future) {
+        if (!cancelled) return;
+        pending.remove(future);
+        future.cancel(true);
+        throw new RejectedExecutionException(mod + " has been unloaded");
+    }
+
+    private void purgeDone() {
+        for (Iterator<Future<?>> it = pending.iterator(); it.hasNext(); ) {
+            if (it.next().isDone()) it.remove();
+        }
+    }
+
+    private void checkOpen() {
+        if (cancelled) throw new RejectedExecutionException(mod + " has been unloaded");
+    }
+
+    private static Runnable runnable(final Callable<?> c) {
+        return new Runnable() {
+            @Override public void run() {
+                try {
+                    c.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private final class Tracked<T> implements Callable<T> {
+        private final Callable<T> task;
+        // as in ScheduledThreadPoolExecutor: > 0 fixed rate, < 0 fixed delay, 0 runs once
+        private final long period;
+        // when the next run is due, wait is measured from here rather than from submission
+        private long due;
+
+        Tracked(Callable<T> task, long delayNanos, long period) {
+            this.task = task;
+            this.period = period;
+            this.due = System.nanoTime() + delayNanos;
+        }
+
+        @Override
+        public T call() throws Exception {
+            Metrics.Scope metrics = Metrics.get().forMod(mod);
+            long start = System.nanoTime();
+            metrics.histogram("executor.wait_us").record(Math.max(0, start - due) / 1_000L);
+            long cpuStart = Debug.threadCpuTimeNanos();
+            try {
+                return task.call();
+            } catch (Throwable e) {
+                // Errors too, e.g. NoClassDefFoundError from a task outliving its mod
+                metrics.counter("executor.failed").inc();
+                if (!(e instanceof InterruptedException)) Logger.forMod(mod).e("Task failed", e);
+                throw e;
+            } finally {
+                long cpuEnd = Debug.threadCpuTimeNanos();
+                if (cpuStart >= 0 && cpuEnd >= cpuStart) metrics.counter("executor.cpu_ns").add(cpuEnd - cpuStart);
+                metrics.histogram("executor.run_us").recordSince(start);
+                metrics.counter("executor.tasks").inc();
+                if (period > 0) due += period;
+                else if (period < 0) due = System.nanoTime() - period;
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package id.my.nexcaise.ncmodloader;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools shared by all mods, so each mod does not have to start its own.
+ *
+ * <ul>
+ *   <li>cpu: one thread per core minus one, left for the game's render thread</li>
+ *   <li>io: bounded number of threads for blocking work</li>
+ *   <li>scheduled: a single timer thread; scheduled work should hand off to cpu or io</li>
+ * </ul>
+ *
+ * Mods submit through {@link #forMod(String)}, which tags every task so its
+ * queue wait, run time and CPU time land in the mod's {@link Metrics} scope and
+ * everything still pending can be cancelled when the mod is unloaded.
+ */
+public final class ModExecutors {
+
+    private static final int CPU_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final int IO_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor cpu;
+    private static ThreadPoolExecutor io;
+    private static ScheduledThreadPoolExecutor scheduled;
+    private static final ConcurrentHashMap<String, ModExecutor> MODS = new ConcurrentHashMap<>();
+
+    private ModExecutors() {}
+
+    /** Executor facade of a mod; cached, the same instance for the same name. */
+    public static ModExecutor forMod(String modName) {
+        ensureStarted();
+        ModExecutor e = MODS.get(modName);
+        if (e != null) return e;
+        ModExecutor created = new ModExecutor(modName);
+        e = MODS.putIfAbsent(modName, created);
+        return e != null ? e : created;
+    }
+
+    /** Cancels everything the mod still has queued or scheduled and interrupts its running tasks. */
+    public static int cancelMod(String modName) {
+        ModExecutor e = MODS.remove(modName);
+        return e != null ? e.cancelAll() : 0;
+    }
+
+    /** Shuts every pool down, waiting up to {@code timeoutMs} for running tasks. */
+    public static void shutdown(long timeoutMs) {
+        ThreadPoolExecutor c, i;
+        ScheduledThreadPoolExecutor s;
+        synchronized (ModExecutors.class) {
+            c = cpu;
+            i = io;
+            s = scheduled;
+            cpu = null;
+            io = null;
+            scheduled = null;
+        }
+        for (String mod : new ArrayList<>(MODS.keySet())) cancelMod(mod);
+        if (c == null) return;
+        s.shutdownNow();
+        c.shutdown();
+        i.shutdown();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            if (!c.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) c.shutdownNow();
+            if (!i.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) i.shutdownNow();
+        } catch (InterruptedException e) {
+            c.shutdownNow();
+            i.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The shared timer, also used by the loader for its own periodic work. */
+    static ScheduledExecutorService scheduler() {
+        ensureStarted();
+        return scheduled;
+    }
+
+    static ExecutorService cpu() {
+        ensureStarted();
+        return cpu;
+    }
+
+    static ExecutorService io() {
+        ensureStarted();
+        return io;
+    }
+
+    private static synchronized void ensureStarted() {
+        if (cpu != null) return;
+        cpu = new ThreadPoolExecutor(CPU_THREADS, CPU_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new Factory("ncml-cpu", Thread.NORM_PRIORITY - 1));
+        cpu.allowCoreThreadTimeOut(true);
+        io = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new Factory("ncml-io", Thread.NORM_PRIORITY - 1));
+        io.allowCoreThreadTimeOut(true);
+        scheduled = new ScheduledThreadPoolExecutor(1, new Factory("ncml-sched", Thread.NORM_PRIORITY));
+        scheduled.setRemoveOnCancelPolicy(true);
+
+        final ThreadPoolExecutor c = cpu, i = io;
+        final ScheduledThreadPoolExecutor s = scheduled;
+        Metrics.Scope metrics = Metrics.get().loader();
+        metrics.gauge("executor.cpu.queue", new Metrics.Gauge() { public long value() { return c.getQueue().size(); } });
+        metrics.gauge("executor.cpu.active", new Metrics.Gauge() { public long value() { return c.getActiveCount(); } });
+        metrics.gauge("executor.io.queue", new Metrics.Gauge() { public long value() { return i.getQueue().size(); } });
+        metrics.gauge("executor.io.active", new Metrics.Gauge() { public long value() { return i.getActiveCount(); } });
+        metrics.gauge("executor.scheduled.queue", new Metrics.Gauge() { public long value() { return s.getQueue().size(); } });
+    }
+
+    private static final class Factory implements ThreadFactory {
+        private final String prefix;
+        private final int priority;
+        private final AtomicInteger count = new AtomicInteger();
+
+        Factory(String prefix, int priority) {
+            this.prefix = prefix;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(priority);
+            return t;
+        }
+    }
+}
@@ -3,9 +3,12 @@ package id.my.nexcaise.ncmodloader;
 import android.content.Context;
 import android.content.res.AssetManager;
 import dalvik.system.DexClassLoader;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.*;
 import java.util.zip.*;
 import org.json.*;
@@ -14,6 +17,17 @@ import android.app.Activity;
 import android.content.Intent;
 
 public class ModManager {
+// shared by every ModManager instance, guarded by itself
+private static final Map<String, LoadedMod> LOADED = new LinkedHashMap<>();
+private static final int GC_ATTEMPTS = 10;
+// loads this close together reuse the previous after-GC heap sample as their baseline
+private static final long HEAP_BASELINE_TTL_MS = 1_000;
+private static long heapBaseline;
+private static long heapBaselineAt;
+private static volatile boolean measureRetainedHeap;
+// suffix of the native dirs reload() stages, "natives/<mod>@<generation>"
+private static final AtomicInteger GENERATION = new AtomicInteger();
+
 private final Context context;
 private final File cacheDir;
 
@@ -27,11 +41,46 @@ public static ModManager get(Context ctx) {
     return new ModManager(ctx);  
 }  
 
+public static List<LoadedMod> getLoadedMods() {
+    synchronized (LOADED) {
+        return new ArrayList<>(LOADED.values());
+    }
+}
+
+public static LoadedMod getLoadedMod(String name) {
+    synchronized (LOADED) {
+        return LOADED.get(name);
+    }
+}
+
 public void loadLib(File jarFile) {  
+    LoadPlan.Entry entry = prepare(jarFile);
+    if (entry != null) load(entry);
+}  
+
+/**
+ * Reads the manifest and stages everything the mod needs (natives, asset apk,
+ * custom pack) without loading any code. Returns null when the mod is skipped.
+ */
+public LoadPlan.Entry prepare(File jarFile) {  
+    return prepare(jarFile, null);
+}
+
+/** {@code packUuid} keeps an existing custom pack registration, null mints a new one. */
+public LoadPlan.Entry prepare(File jarFile, String packUuid) {
+    return prepare(jarFile, packUuid, false);
+}
+
+/**
+ * {@code freshNatives} stages the natives under a path no loader has opened
+ * yet: ART refuses a library path that is still open in another class loader,
+ * and the loader of an unloaded mod is only collected some time later.
+ */
+private LoadPlan.Entry prepare(File jarFile, String packUuid, boolean freshNatives) {
     JSONObject manifest = readManifest(jarFile);  
     if (manifest == null) {  
         Logger.get().error("manifest.json not found!, skipped: " + jarFile.getName());  
-        return;  
+        return null;  
     }  
 
     boolean hasNative = manifest.optBoolean("native", false);
@@ -40,53 +89,356 @@ public void loadLib(File jarFile) {
     String mainClass = manifest.optString("main", null);
     if (mainClass == null) {  
         Logger.get().error("'main' not found in manifest.json, skipped: " + jarFile.getName());  
-        return;  
+        return null;  
     }  
 
+    // v2 packages carry an index, everything below can then skip scanning and extraction
+    NcmPackage pkg = NcmPackage.open(jarFile);
+    if (pkg != null) Metrics.get().loader().counter("ncm.v2").inc();
+
+    int flags = (hasNative ? LoadPlan.FLAG_NATIVE : 0)
+        | (hasAssets ? LoadPlan.FLAG_ASSETS : 0)
+        | (hasCustomPack ? LoadPlan.FLAG_CUSTOM_PACK : 0)
+        | (pkg != null ? LoadPlan.FLAG_NCM_V2 : 0);
+
     try {  
-        if (hasAssets) extractToApk(jarFile);  
-        if (hasCustomPack) copyCustomPack(jarFile);
+        File assetPath = null;
+        if (hasAssets) {
+            if (pkg == null) assetPath = extractToApk(jarFile);
+            else if (pkg.hasSection(NcmPackage.SECTION_ASSETS)) assetPath = jarFile.getAbsoluteFile();
+            else Logger.get().i("there are no assets in: " + jarFile.getName() + " but 'assets_override': true in the manifest");
+        }
+        packUuid = hasCustomPack ? copyCustomPack(jarFile, pkg, packUuid) : null;
 
         File nativeDir = null;  
-        if (hasNative) {  
+        if (hasNative && !freshNatives && pkg != null && pkg.isMappable(NcmPackage.SECTION_LIB)) {
+            // stored and page aligned, the linker maps the libraries straight out of the package
+            nativeDir = new File(jarFile.getAbsolutePath() + "!/lib");
+        } else if (hasNative) {  
             nativeDir = new File(cacheDir, "natives/" + jarFile.getName().replace(".jar", ""));  
+            if (freshNatives) {
+                do {
+                    nativeDir = new File(cacheDir, "natives/" + modName(jarFile) + "@" + GENERATION.incrementAndGet());
+                } while (nativeDir.exists());
+            }
             if (!nativeDir.exists() && !nativeDir.mkdirs()) {  
                 Logger.get().error("Failed to create native dir: " + nativeDir);  
-                return;  
+                return null;  
             }  
-            Utils.copyFolderFromJar(jarFile.getAbsolutePath(), "lib", nativeDir);  
-        }
-        
-        if (context instanceof Activity) {
-          Intent intent = ((Activity) context).getIntent();
-          String libDir = intent.getStringExtra("MINECRAFT_LIBRARY_DIR");
-
-          DexClassLoader dcl = new DexClassLoader(  
-            jarFile.getAbsolutePath(),  
-            cacheDir.getAbsolutePath(),  
-            libDir,  
-            context.getClassLoader()  
-          );  
-
-          invokeMain(dcl, mainClass, nativeDir);
+            long start = System.nanoTime();
+            NativeStore.Result extracted = nativeStore().extract(jarFile.getAbsolutePath(), "lib", nativeDir, modName(jarFile));
+            Metrics.Scope metrics = Metrics.get().loader();
+            metrics.counter("extract.natives.files").add(extracted.files);
+            metrics.histogram("extract.natives_us").recordSince(start);
+            metrics.counter("natives.store.reused_files").add(extracted.reused);
+            metrics.counter("natives.store.reused_bytes").add(extracted.reusedBytes);
+            if (extracted.duplicates > 0) {
+                metrics.counter("natives.dedup.files").add(extracted.duplicates);
+                metrics.counter("natives.dedup.saved_bytes").add(extracted.savedBytes);
+                metrics.counter("natives.dedup.saved_us").add(extracted.savedNanos / 1_000L);
+                Logger.get().i("Shared " + extracted.duplicates + " native libs with other mods for " + modName(jarFile)
+                    + ": " + extracted.duplicateNames + ", saved " + (extracted.savedBytes / 1024) + " KiB"
+                    + (extracted.savedNanos > 0 ? " and ~" + (extracted.savedNanos / 1_000_000L) + " ms of writes" : ""));
+            }
         }
+
+        return new LoadPlan.Entry(
+            modName(jarFile),
+            jarFile.getAbsolutePath(),
+            mainClass,
+            flags,
+            nativeDir != null ? nativeDir.getAbsolutePath() : null,
+            assetPath != null ? assetPath.getAbsolutePath() : null,
+            packUuid
+        );
     } catch (Exception e) {  
+        Metrics.get().loader().counter("mods.failed").inc();
         Logger.get().error("Failed to load NCModloder: " + e);  
+        return null;
     }  
 }  
 
-private void invokeMain(DexClassLoader dcl, String className, File nativeDir) {  
+/**
+ * Deletes extracted native dirs of mods that are not in {@code entries}
+ * anymore, then every store entry no remaining dir links.
+ */
+public void pruneNatives(List<LoadPlan.Entry> entries) {
+    Set<String> keep = new HashSet<>();
+    for (LoadPlan.Entry e : entries) {
+        if (e.nativeDir != null && !e.nativeDir.contains("!/")) keep.add(new File(e.nativeDir).getName());
+    }
+    File[] dirs = new File(cacheDir, "natives").listFiles();
+    if (dirs != null) {
+        for (File dir : dirs) {
+            if (!keep.contains(dir.getName())) Utils.deleteFolder(dir.getAbsolutePath());
+        }
+    }
+    Metrics.get().loader().counter("natives.store.pruned_bytes").add(nativeStore().prune());
+}
+
+private NativeStore nativeStore() {
+    return NativeStore.get(new File(cacheDir, "native_store"));
+}
+
+/** Loads a staged mod: asset override, class loader and its onLoad. */
+public void load(LoadPlan.Entry entry) {
+    if (getLoadedMod(entry.name) != null) {
+        Logger.get().warn(entry.name + " is already loaded, skipped");
+        return;
+    }
+    if (entry.assetPath != null) addAssetOverride(context.getAssets(), entry.assetPath);
+
+    if (context instanceof Activity) {
+      Intent intent = ((Activity) context).getIntent();
+      String libDir = intent.getStringExtra("MINECRAFT_LIBRARY_DIR");
+
+      ModResources resources = new ModResources(entry);
+      DexClassLoader dcl = new DexClassLoader(  
+        entry.jarPath,  
+        cacheDir.getAbsolutePath(),  
+        libDir,  
+        context.getClassLoader()  
+      );  
+
+      boolean retained = measureRetainedHeap;
+      long heapBefore = retained ? heapBaseline() : usedHeap();
+      Class<?> main = invokeMain(dcl, entry.mainClass, entry.nativeDir != null ? new File(entry.nativeDir) : null, entry.name);
+      if (main != null) {
+          long heapAfter = retained ? usedHeapAfterGc() : usedHeap();
+          if (retained) setHeapBaseline(heapAfter);
+          resources.setHeapAtLoad(heapAfter - heapBefore);
+          resources.publish(Metrics.get().forMod(entry.name));
+          synchronized (LOADED) {
+              LOADED.put(entry.name, new LoadedMod(entry, resources, dcl, main));
+          }
+      }
+    }
+}
+
+/** Told once an unloaded mod's class loader was collected, or given up on. */
+public interface UnloadListener {
+    void onUnloaded(String name, boolean collected, long reclaimedBytes);
+}
+
+public boolean unload(String name) {
+    return unload(name, null);
+}
+
+/**
+ * Calls the mod's optional {@code onUnload(Context)}, removes its native dir
+ * and asset override and drops every loader reference to its class loader.
+ * Returns false when the mod was not loaded. Whether the loader actually gets
+ * collected is checked on the io pool, never forcing a GC on the caller's
+ * thread; the outcome goes to the unload metrics and {@code listener}.
+ */
+public boolean unload(String name, UnloadListener listener) {
+    return unload(name, listener, true);
+}
+
+// verify=false when shutting down, nobody is around to care about leaks then
+boolean unload(String name, final UnloadListener listener, boolean verify) {
+    LoadedMod mod;
+    synchronized (LOADED) {
+        mod = LOADED.remove(name);
+    }
+    if (mod == null) {
+        Logger.get().warn("Unload: " + name + " is not loaded");
+        return false;
+    }
+
+    final long start = System.nanoTime();
+    LoadPlan.Entry entry = mod.getEntry();
+
+    try {
+        mod.getMainClass().getDeclaredMethod("onUnload", Context.class).invoke(null, context);
+    } catch (NoSuchMethodException e) {
+        Logger.get().info(name + " has no onUnload, unloading anyway");
+    } catch (Exception e) {
+        Throwable real = (e instanceof java.lang.reflect.InvocationTargetException) ? e.getCause() : e;
+        Logger.get().error(getStackTraceAsString(real));
+    }
+
+    if (entry.nativeDir != null) {
+        try {
+            Utils.removeNativeLibraries(entry.nativeDir, Utils.getPathList(mod.getClassLoader()));
+        } catch (ReflectiveOperationException e) {
+            Logger.get().warn("Failed to remove native dir of " + name + ": " + e);
+        }
+    }
+    if (entry.assetPath != null) Utils.removeAssetOverride(context.getAssets(), entry.assetPath);
+    // pending tasks and gauges registered by the mod may reference its classes
+    ModExecutors.cancelMod(name);
+    Metrics.get().removeMod(name);
+
+    Metrics.get().loader().histogram("unload_us").recordSince(start);
+
+    final String modName = name;
+    final LoadedMod unloaded = mod;
+    Runnable check = new Runnable() {
+        @Override public void run() {
+            checkCollected(modName, unloaded, start, listener);
+        }
+    };
+    try {
+        if (verify) {
+            ModExecutors.io().execute(check);
+            return true;
+        }
+    } catch (RejectedExecutionException e) {
+        // pools are shut down already
+    }
+    unloaded.release();
+    Logger.get().info("Unloaded -> " + name);
+    return true;
+}
+
+// runs on the io pool: GCs here only cost a background thread
+private static void checkCollected(String name, LoadedMod mod, long start, UnloadListener listener) {
+    Metrics.Scope metrics = Metrics.get().loader();
+    long heapBefore = usedHeapAfterGc();
+    WeakReference<ClassLoader> ref = new WeakReference<>(mod.getClassLoader());
+    mod.release();
+    boolean collected = awaitCollected(ref);
+    long reclaimed = Math.max(0, heapBefore - usedHeapAfterGc());
+
+    metrics.histogram("unload.collect_us").recordSince(start);
+    metrics.counter("unload.reclaimed_bytes").add(reclaimed);
+    metrics.counter(collected ? "mods.unloaded" : "unload.leaked").inc();
+    if (collected) {
+        Logger.get().info("Unloaded -> " + name + ", reclaimed ~" + reclaimed / 1024 + " KiB, collected after "
+            + (System.nanoTime() - start) / 1_000_000 + " ms");
+    } else {
+        Logger.get().warn("Unloaded -> " + name + " but its class loader is still reachable (leaked static or thread?)");
+    }
+    if (listener != null) {
+        try {
+            listener.onUnloaded(name, collected, reclaimed);
+        } catch (Throwable t) {
+            Logger.get().error("Unload listener of " + name + " failed: " + t);
+        }
+    }
+}
+
+/**
+ * Unloads a mod if loaded, stages it again from the mods folder and loads it.
+ * Returns the new instance, or null when it failed to load.
+ */
+public LoadedMod reload(String name) {
+    long start = System.nanoTime();
+    File staged = new File(context.getDir("ncmodloader", Context.MODE_PRIVATE), "mods/" + name + ".jar");
+
+    LoadedMod current = getLoadedMod(name);
+    // same uuid, or every reload would leave a dangling global_resource_packs.json entry
+    String packUuid = current != null ? current.getEntry().packUuid : null;
+    if (current != null) {
+        unload(name);
+        discardStaged(current.getEntry());
+    }
+
+    File source = new File(NCModloader.MODLOADER_DIR, "mods/" + name);
+    try {
+        if (source.exists()) {
+            // replace rather than overwrite, the old dex may still be mapped
+            File tmp = Utils.tempFileFor(staged);
+            Utils.copyFile(source, tmp);
+            Utils.replaceFile(tmp, staged);
+        }
+    } catch (IOException e) {
+        Logger.get().error("Failed to stage " + name + " for reload: " + e);
+        return null;
+    }
+    if (!staged.exists()) {
+        Logger.get().error("Reload: " + name + " not found");
+        return null;
+    }
+
+    LoadPlan.Entry entry = prepare(staged, packUuid, true);
+    if (entry == null) return null;
+    load(entry);
+
+    LoadedMod mod = getLoadedMod(name);
+    Metrics.get().loader().histogram("reload_us").recordSince(start);
+    Logger.get().info("Reloaded -> " + name + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    return mod;
+}
+
+// unlink instead of truncating files a not-yet-collected loader may still have mapped
+private void discardStaged(LoadPlan.Entry entry) {
+    if (entry.nativeDir != null && !entry.nativeDir.contains("!/")) Utils.deleteFolder(entry.nativeDir);
+    if (entry.assetPath != null && !entry.assetPath.equals(entry.jarPath)) new File(entry.assetPath).delete();
+}
+
+private static boolean awaitCollected(WeakReference<?> ref) {
+    for (int i = 0; i < GC_ATTEMPTS && ref.get() != null; i++) {
+        Runtime.getRuntime().gc();
+        System.runFinalization();
+        if (ref.get() == null) break;
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+        }
+    }
+    return ref.get() == null;
+}
+
+/**
+ * Measures {@link ModResources#getHeapAtLoad()} between full GCs, so it shows
+ * what onLoad retained rather than what it allocated. Costs a GC per load, so
+ * it is meant for profiling sessions and off by default.
+ */
+public static void setMeasureRetainedHeap(boolean enabled) {
+    measureRetainedHeap = enabled;
+}
+
+// a batch of N loads costs N + 1 GCs instead of 2N
+private static synchronized long heapBaseline() {
+    long now = System.currentTimeMillis();
+    if (now - heapBaselineAt > HEAP_BASELINE_TTL_MS) {
+        heapBaseline = usedHeapAfterGc();
+        heapBaselineAt = System.currentTimeMillis();
+    }
+    return heapBaseline;
+}
+
+private static synchronized void setHeapBaseline(long used) {
+    heapBaseline = used;
+    heapBaselineAt = System.currentTimeMillis();
+}
+
+private static long usedHeapAfterGc() {
+    Runtime.getRuntime().gc();
+    return usedHeap();
+}
+
+private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    return rt.totalMemory() - rt.freeMemory();
+}
+
+private Class<?> invokeMain(DexClassLoader dcl, String className, File nativeDir, String modName) {  
+    Metrics.Scope metrics = Metrics.get().loader();
     try {  
         if (nativeDir != null) {  
             Object pathList = Utils.getPathList(dcl);  
             Utils.injectNativeLibraries(nativeDir.getAbsolutePath(), pathList);  
         }  
+        long start = System.nanoTime();
         Class<?> clazz = dcl.loadClass(className);  
+        metrics.histogram("classload_us").recordSince(start);
+
+        start = System.nanoTime();
         clazz.getDeclaredMethod("onLoad", Context.class).invoke(null, context);  
+        Metrics.get().forMod(modName).histogram("onload_us").recordSince(start);
+        metrics.counter("mods.loaded").inc();
         Logger.get().info("Loaded: " + className);  
+        return clazz;
     } catch (Exception e) {  
+        metrics.counter("mods.failed").inc();
         Throwable real = (e instanceof java.lang.reflect.InvocationTargetException) ? e.getCause() : e;  
         Logger.get().error(getStackTraceAsString(real));  
+        return null;
     }  
 }  
 
@@ -104,7 +456,7 @@ private JSONObject readManifest(File jarFile) {
     }  
 }  
 
-private void extractToApk(File jarFile) throws IOException {
+private File extractToApk(File jarFile) throws IOException {
     if (!jarFile.exists())  
         throw new FileNotFoundException(".jar file not found: " + jarFile.getAbsolutePath());  
 
@@ -120,6 +472,7 @@ private void extractToApk(File jarFile) throws IOException {
     assetsDir.mkdirs();  
 
     boolean foundAssets = false;
+    int extracted = 0;
 
     try (JarFile jar = new JarFile(jarFile)) {
         Enumeration<JarEntry> entries = jar.entries();  
@@ -140,21 +493,89 @@ private void extractToApk(File jarFile) throws IOException {
                  OutputStream os = new FileOutputStream(outFile)) {  
                 Utils.copyStream(is, os);  
             }
+            extracted++;
         }  
     }  
+    Metrics.get().loader().counter("extract.assets.files").add(extracted);
 
     if (!foundAssets) {  
         Logger.get().i("there are no assets in: " + jarFile.getName() + " but 'assets_override': true in the manifest");  
         Utils.deleteFolder(tempDir.getAbsolutePath());  
-        return;  
+        return null;  
     }  
 
     zipFolder(tempDir, apkFile);  
     Utils.deleteFolder(tempDir.getAbsolutePath());  
-    addAssetOverride(context.getAssets(), apkFile.getAbsolutePath());  
+    return apkFile;
+}
+
+/**
+ * True when the mod's custom pack is still on disk under its planned uuid and
+ * listed in global_resource_packs.json. The game or the user may rewrite either
+ * without any .ncm or the config changing, so a plan hit has to check.
+ */
+public boolean isPackStaged(LoadPlan.Entry entry) {
+    if (entry.packUuid == null) return true;
+    File jarFile = new File(entry.jarPath);
+    if (!entry.packUuid.equals(packUuid(new File(packDir(jarFile), "manifest.json"), false))) return false;
+    JSONArray packs = readGlobalPacks(globalPacksFile());
+    for (int i = 0; i < packs.length(); i++) {
+        JSONObject pack = packs.optJSONObject(i);
+        if (pack != null && entry.packUuid.equals(pack.optString("pack_id"))) return true;
+    }
+    return false;
 }
 
-private void copyCustomPack(File jarFile) throws IOException {
+/** Copies and registers the mod's custom pack again, keeping its planned uuid. */
+public boolean restagePack(LoadPlan.Entry entry) {
+    if (entry.packUuid == null) return true;
+    File jarFile = new File(entry.jarPath);
+    try {
+        NcmPackage pkg = entry.has(LoadPlan.FLAG_NCM_V2) ? NcmPackage.open(jarFile) : null;
+        return entry.packUuid.equals(copyCustomPack(jarFile, pkg, entry.packUuid));
+    } catch (IOException e) {
+        Logger.get().error("Failed to restage custom pack of " + entry.name + ": " + e);
+        return false;
+    }
+}
+
+private File packDir(File jarFile) {
+    String baseName = jarFile.getName().replace(".jar", "");
+    String cleanName = baseName.endsWith(".ncm") ? baseName.substring(0, baseName.length() - 8) : baseName;
+    return new File(context.getExternalFilesDir(null), "resource_packs/ncmodloader_" + cleanName);
+}
+
+private File globalPacksFile() {
+    return new File(context.getExternalFilesDir(null), "games/com.mojang/minecraftpe/global_resource_packs.json");
+}
+
+private JSONArray readGlobalPacks(File globalPacksFile) {
+    if (!globalPacksFile.exists()) return new JSONArray();
+    try (InputStream in = new FileInputStream(globalPacksFile)) {
+        String content = readFully(in).trim();
+        return content.isEmpty() ? new JSONArray() : new JSONArray(content);
+    } catch (Exception e) {
+        return new JSONArray();
+    }
+}
+
+// header uuid of a pack manifest, or the uuid of its first module; null if unreadable
+private static String packUuid(File manifestFile, boolean module) {
+    if (!manifestFile.exists()) return null;
+    try {
+        JSONObject manifest = new JSONObject(new String(Utils.readAllBytes(manifestFile), "UTF-8"));
+        if (!module) return manifest.getJSONObject("header").optString("uuid", null);
+        return manifest.getJSONArray("modules").getJSONObject(0).optString("uuid", null);
+    } catch (Exception e) {
+        return null;
+    }
+}
+
+/**
+ * Copies custom_pack/ into the game's resource packs and registers it. A
+ * non-null {@code uuid} keeps an existing registration instead of minting one.
+ */
+private String copyCustomPack(File jarFile, NcmPackage pkg, String uuid) throws IOException {
     if (!jarFile.exists())
         throw new FileNotFoundException(".jar file not found: " + jarFile.getAbsolutePath());
 
@@ -162,17 +583,19 @@ private void copyCustomPack(File jarFile) throws IOException {
     String cleanName = baseName.endsWith(".ncm") ? baseName.substring(0, baseName.length() - 8) : baseName;
 
     boolean found = false;
-    File externalDir = context.getExternalFilesDir(null);
+    int extracted = 0;
     //File cdnDir = new File("/sdcard/games/org.levimc/minecraft/com.mojang.minecraftpe/cdn");
-    File resourceDst = new File(externalDir, "resource_packs/ncmodloader_" + cleanName);
+    File resourceDst = packDir(jarFile);
     //cdnDir.mkdirs();
     resourceDst.mkdirs();
 
     // Salin isi custom_pack/
     try (JarFile jar = new JarFile(jarFile)) {
-        Enumeration<JarEntry> entries = jar.entries();
-        while (entries.hasMoreElements()) {
-            JarEntry entry = entries.nextElement();
+        Iterator<? extends ZipEntry> entries = pkg != null
+            ? pkg.zipEntries(jar, NcmPackage.SECTION_CUSTOM_PACK).iterator()
+            : Collections.list(jar.entries()).iterator();
+        while (entries.hasNext()) {
+            ZipEntry entry = entries.next();
             String name = entry.getName();
             if (!name.startsWith("custom_pack/")) continue;
             found = true;
@@ -190,18 +613,22 @@ private void copyCustomPack(File jarFile) throws IOException {
                  OutputStream os = new FileOutputStream(outFile)) {
                 Utils.copyStream(is, os);
             }
+            extracted++;
         }
     }
+    Metrics.get().loader().counter("extract.custom_pack.files").add(extracted);
 
     if (!found) {
         Logger.get().i("No custom_pack found in: " + jarFile.getName());
-        return;
+        return null;
     }
 
     // Buat manifest.json untuk resource pack
     File manifestFile = new File(resourceDst, "manifest.json");
-    String uuid1 = UUID.randomUUID().toString();
-    String uuid2 = UUID.randomUUID().toString();
+    String uuid1 = uuid != null ? uuid : UUID.randomUUID().toString();
+    // keep the module uuid too when the manifest on disk is still ours
+    String uuid2 = uuid != null && uuid.equals(packUuid(manifestFile, false)) ? packUuid(manifestFile, true) : null;
+    if (uuid2 == null) uuid2 = UUID.randomUUID().toString();
 
     String manifest = "{\n" +
         "  \"format_version\": 2,\n" +
@@ -225,7 +652,7 @@ private void copyCustomPack(File jarFile) throws IOException {
     }
 
     // === Update global_resource_packs.json ===
-    File globalPacksFile = new File(externalDir, "games/com.mojang/minecraftpe/global_resource_packs.json");
+    File globalPacksFile = globalPacksFile();
     JSONArray packsArray;
 
     if (!globalPacksFile.exists()) {
@@ -236,16 +663,7 @@ private void copyCustomPack(File jarFile) throws IOException {
       }
     }
     
-    if (globalPacksFile.exists()) {
-        try (InputStream in = new FileInputStream(globalPacksFile)) {
-            String content = readFully(in).trim();
-            packsArray = content.isEmpty() ? new JSONArray() : new JSONArray(content);
-        } catch (Exception e) {
-            packsArray = new JSONArray();
-        }
-    } else {
-        packsArray = new JSONArray();
-    }
+    packsArray = readGlobalPacks(globalPacksFile);
 
     try {
     JSONArray newArray = new JSONArray();
@@ -276,11 +694,12 @@ private void copyCustomPack(File jarFile) throws IOException {
 
 } catch (JSONException e) {
     Logger.get().error("Failed to update global_resource_packs.json: " + e);
-    return;
+    return null;
 }
 
     Logger.get().i("✅ Global resource pack registered: " + uuid1);
     Logger.get().i("✅ Custom pack path: " + resourceDst.getAbsolutePath());
+    return uuid1;
 }
  
 private void zipFolder(File source, File zipFile) throws IOException {  
@@ -309,6 +728,12 @@ private void zipFileRecursive(File rootDir, File source, ZipOutputStream zos) th
     }  
 }  
 
+// "foo.ncm.jar" -> "foo.ncm", same name as in ncmodloader_config.json
+static String modName(File jarFile) {
+    String name = jarFile.getName();
+    return name.endsWith(".jar") ? name.substring(0, name.length() - 4) : name;
+}
+
 private String getStackTraceAsString(Throwable t) {  
     StringWriter sw = new StringWriter();  
     t.printStackTrace(new PrintWriter(sw));  
@@ -0,0 +1,278 @@
+package id.my.nexcaise.ncmodloader;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import org.json.*;
+
+/**
+ * Resources attributed to one loaded mod: classes defined in its dex, dex
+ * and optimized dex size, native libraries (on disk and currently mapped),
+ * asset apk size and the heap growth across its onLoad.
+ *
+ * Sizes that need disk access are computed once and cached; mapped native
+ * bytes are read from /proc/self/maps, shared across mods for a few seconds.
+ * Every value is also published as a gauge in the mod's {@link Metrics} scope.
+ */
+public final class ModResources {
+
+    private static final long MAPS_TTL_MS = 5_000;
+    private static final Object MAPS_LOCK = new Object();
+    private static List<String> mapsLines = Collections.emptyList();
+    private static long mapsSampledAt;
+
+    private final String name;
+    private final String jarPath;
+    private final String nativeDir;
+    private final String assetPath;
+    private volatile long heapAtLoad;
+
+    private volatile int classCount = -1;
+    private volatile long dexBytes = -1;
+    private volatile long optimizedBytes = -1;
+    private volatile long nativeBytes = -1;
+    private volatile long assetBytes = -1;
+    // [offset, offset + size) of every lib entry of a v2 package, flattened
+    private volatile long[] libRanges;
+    private volatile String mappedPath;
+
+    ModResources(LoadPlan.Entry entry) {
+        this.name = entry.name;
+        this.jarPath = entry.jarPath;
+        this.nativeDir = entry.nativeDir;
+        this.assetPath = entry.assetPath;
+    }
+
+    void setHeapAtLoad(long bytes) { heapAtLoad = Math.max(0, bytes); }
+
+    public String getName() { return name; }
+
+    /**
+     * Classes defined in the mod's classes*.dex, from the class_defs_size of
+     * each dex header; loaded lazily or not, so no custom loader type is needed.
+     */
+    public int getClassCount() {
+        if (classCount < 0) {
+            int total = 0;
+            byte[] header = new byte[0x64];
+            try (ZipFile zip = new ZipFile(jarPath)) {
+                for (int i = 1; ; i++) {
+                    ZipEntry e = zip.getEntry(i == 1 ? "classes.dex" : "classes" + i + ".dex");
+                    if (e == null) break;
+                    try (InputStream in = zip.getInputStream(e)) {
+                        if (!readFully(in, header)) continue;
+                    }
+                    // class_defs_size, uint32 little-endian at 0x60
+                    total += (header[0x60] & 0xff) | (header[0x61] & 0xff) << 8
+                        | (header[0x62] & 0xff) << 16 | (header[0x63] & 0xff) << 24;
+                }
+            } catch (IOException e) {
+                Logger.get().w("Failed to count classes of " + name + ": " + e);
+            }
+            classCount = total;
+        }
+        return classCount;
+    }
+
+    private static boolean readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n < 0) return false;
+            off += n;
+        }
+        return true;
+    }
+
+    /** Uncompressed size of the classes*.dex entries. */
+    public long getDexBytes() {
+        if (dexBytes < 0) {
+            long total = 0;
+            try (ZipFile zip = new ZipFile(jarPath)) {
+                for (int i = 1; ; i++) {
+                    ZipEntry e = zip.getEntry(i == 1 ? "classes.dex" : "classes" + i + ".dex");
+                    if (e == null) break;
+                    total += Math.max(0, e.getSize());
+                }
+            } catch (IOException e) {
+                Logger.get().w("Failed to measure dex of " + name + ": " + e);
+            }
+            dexBytes = total;
+        }
+        return dexBytes;
+    }
+
+    /** odex/vdex/art files ART produced next to the staged jar. */
+    public long getOptimizedBytes() {
+        // ART may still be compiling in the background, keep looking until something shows up
+        if (optimizedBytes <= 0) {
+            File jar = new File(jarPath);
+            String base = jar.getName().endsWith(".jar") ? jar.getName().substring(0, jar.getName().length() - 4) : jar.getName();
+            optimizedBytes = sizeOf(new File(jar.getParentFile(), "oat"), base);
+        }
+        return optimizedBytes;
+    }
+
+    /** Size of the mod's native libraries, extracted or inside a v2 package. */
+    public long getNativeBytes() {
+        if (nativeBytes < 0) {
+            if (nativeDir == null) nativeBytes = 0;
+            else if (nativeDir.contains("!/")) nativeBytes = packageSectionBytes(NcmPackage.SECTION_LIB);
+            else nativeBytes = sizeOf(new File(nativeDir), null);
+        }
+        return nativeBytes;
+    }
+
+    /** Bytes currently mapped from the mod's native libraries. */
+    public long getNativeMappedBytes() {
+        if (nativeDir == null) return 0;
+        // libraries mapped straight from a v2 package show up under the package path,
+        // next to the asset and zip directory mappings of the same file
+        boolean inPackage = nativeDir.contains("!/");
+        String path = mappedPath();
+        long[] ranges = inPackage ? libRanges() : null;
+        String prefix = path + "/";
+        long total = 0;
+        for (String line : sampleMaps()) {
+            // start-end perms offset dev inode path
+            String[] f = line.trim().split("\\s+", 6);
+            if (f.length < 6) continue;
+            if (inPackage ? !f[5].equals(path) : !f[5].startsWith(prefix)) continue;
+            int dash = f[0].indexOf('-');
+            if (dash < 0) continue;
+            try {
+                long length = Long.parseLong(f[0].substring(dash + 1), 16) - Long.parseLong(f[0].substring(0, dash), 16);
+                if (!inPackage) {
+                    total += length;
+                    continue;
+                }
+                long from = Long.parseLong(f[2], 16);
+                for (int i = 0; i < ranges.length; i += 2) {
+                    long overlap = Math.min(from + length, ranges[i + 1]) - Math.max(from, ranges[i]);
+                    if (overlap > 0) total += overlap;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return total;
+    }
+
+    public long getAssetBytes() {
+        if (assetBytes < 0) {
+            if (assetPath == null) assetBytes = 0;
+            else if (assetPath.equals(jarPath)) assetBytes = packageSectionBytes(NcmPackage.SECTION_ASSETS);
+            else assetBytes = new File(assetPath).length();
+        }
+        return assetBytes;
+    }
+
+    /**
+     * Java heap growth across onLoad. Sampled without a GC by default, so it
+     * includes garbage onLoad left behind and anything other threads allocated
+     * meanwhile; with {@link ModManager#setMeasureRetainedHeap(boolean)} it is
+     * the heap retained between full GCs instead.
+     */
+    public long getHeapAtLoad() { return heapAtLoad; }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("classes", getClassCount());
+        o.put("dex_bytes", getDexBytes());
+        o.put("optimized_bytes", getOptimizedBytes());
+        o.put("native_bytes", getNativeBytes());
+        o.put("native_mapped_bytes", getNativeMappedBytes());
+        o.put("asset_bytes", getAssetBytes());
+        o.put("heap_at_load_bytes", getHeapAtLoad());
+        return o;
+    }
+
+    /** Resource report of every loaded mod, keyed by mod name. */
+    public static JSONObject report() {
+        JSONObject all = new JSONObject();
+        for (LoadedMod mod : ModManager.getLoadedMods()) {
+            try {
+                all.put(mod.getName(), mod.getResources().toJson());
+            } catch (JSONException e) {
+                Logger.get().w("Failed to report resources of " + mod.getName() + ": " + e);
+            }
+        }
+        return all;
+    }
+
+    void publish(Metrics.Scope scope) {
+        scope.gauge("res.classes", new Metrics.Gauge() { public long value() { return getClassCount(); } });
+        scope.gauge("res.dex_bytes", new Metrics.Gauge() { public long value() { return getDexBytes(); } });
+        scope.gauge("res.optimized_bytes", new Metrics.Gauge() { public long value() { return getOptimizedBytes(); } });
+        scope.gauge("res.native_bytes", new Metrics.Gauge() { public long value() { return getNativeBytes(); } });
+        scope.gauge("res.native_mapped_bytes", new Metrics.Gauge() { public long value() { return getNativeMappedBytes(); } });
+        scope.gauge("res.asset_bytes", new Metrics.Gauge() { public long value() { return getAssetBytes(); } });
+        scope.gauge("res.heap_at_load_bytes", new Metrics.Gauge() { public long value() { return getHeapAtLoad(); } });
+    }
+
+    private long[] libRanges() {
+        long[] ranges = libRanges;
+        if (ranges == null) {
+            NcmPackage pkg = NcmPackage.open(new File(jarPath));
+            List<NcmPackage.Entry> libs = pkg != null ? pkg.entries(NcmPackage.SECTION_LIB) : Collections.<NcmPackage.Entry>emptyList();
+            ranges = new long[libs.size() * 2];
+            for (int i = 0; i < libs.size(); i++) {
+                ranges[2 * i] = libs.get(i).offset;
+                ranges[2 * i + 1] = libs.get(i).offset + libs.get(i).size;
+            }
+            libRanges = ranges;
+        }
+        return ranges;
+    }
+
+    // /proc/self/maps has kernel resolved paths (/data/data/..., not /data/user/0/...)
+    private String mappedPath() {
+        String path = mappedPath;
+        if (path == null) {
+            File f = new File(nativeDir.contains("!/") ? jarPath : nativeDir);
+            try {
+                path = f.getCanonicalPath();
+            } catch (IOException e) {
+                path = f.getAbsolutePath();
+            }
+            mappedPath = path;
+        }
+        return path;
+    }
+
+    private long packageSectionBytes(String section) {
+        NcmPackage pkg = NcmPackage.open(new File(jarPath));
+        if (pkg == null) return 0;
+        long total = 0;
+        for (NcmPackage.Entry e : pkg.entries(section)) total += e.size;
+        return total;
+    }
+
+    // recursive file size, optionally only files whose name starts with prefix
+    private static long sizeOf(File f, String prefix) {
+        if (f.isFile()) return prefix == null || f.getName().startsWith(prefix) ? f.length() : 0;
+        File[] children = f.listFiles();
+        if (children == null) return 0;
+        long total = 0;
+        for (File c : children) total += sizeOf(c, prefix);
+        return total;
+    }
+
+    private static List<String> sampleMaps() {
+        synchronized (MAPS_LOCK) {
+            long now = System.currentTimeMillis();
+            if (now - mapsSampledAt < MAPS_TTL_MS) return mapsLines;
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader r = new BufferedReader(new FileReader("/proc/self/maps"))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.indexOf('/') >= 0) lines.add(line);
+                }
+            } catch (IOException e) {
+                // not on Linux, nothing is mapped as far as we can tell
+            }
+            mapsLines = lines;
+            mapsSampledAt = now;
+            return lines;
+        }
+    }
+}
@@ -5,26 +5,150 @@ import java.io.*;
 import java.util.*;
 import org.json.*;
 import android.app.Activity;
+import android.os.Build;
+import android.os.FileObserver;
 //import org.levimc.launcher.settings.FeatureSettings;
 
 public class NCModloader {
+    public static final String MODLOADER_DIR = "/storage/emulated/0/games/NexCaise/ModLoader";
+    private static final long METRICS_INTERVAL_MS = 30_000;
+    private static final long SHUTDOWN_TIMEOUT_MS = 2_000;
+
     private static ModManager lm;
     private static Activity activity;
+    // kept referenced, a collected FileObserver stops watching
+    private static FileObserver configObserver;
     
     public static Activity getActivity() {
         return activity;
     }
 
+    public static Metrics getMetrics() {
+        return Metrics.get();
+    }
+
+    public static List<LoadedMod> getLoadedMods() {
+        return ModManager.getLoadedMods();
+    }
+
+    /** Shared cpu/io/scheduled pools, tagged with the mod's name. */
+    public static ModExecutor getExecutor(String modName) {
+        return ModExecutors.forMod(modName);
+    }
+
+    /**
+     * Unloads every mod, newest first, writes a last metrics snapshot and
+     * shuts the shared pools down.
+     */
+    public static void shutdown() {
+        List<LoadedMod> mods = ModManager.getLoadedMods();
+        Collections.reverse(mods);
+        for (LoadedMod mod : mods) manager().unload(mod.getName(), null, false);
+
+        Metrics.get().setSnapshotInterval(0);
+        try {
+            Metrics.get().writeSnapshot();
+        } catch (IOException e) {
+            Logger.get().warn("Failed to write metrics snapshot: " + e);
+        }
+        ModExecutors.shutdown(SHUTDOWN_TIMEOUT_MS);
+    }
+
+    /** Resource usage of a loaded mod, or null when it is not loaded. */
+    public static ModResources getModResources(String name) {
+        LoadedMod mod = ModManager.getLoadedMod(name);
+        return mod != null ? mod.getResources() : null;
+    }
+
+    public static boolean unloadMod(String name) {
+        return manager().unload(name);
+    }
+
+    /** Like {@link #unloadMod(String)}, {@code listener} hears whether the mod's class loader was collected. */
+    public static boolean unloadMod(String name, ModManager.UnloadListener listener) {
+        return manager().unload(name, listener);
+    }
+
+    public static LoadedMod reloadMod(String name) {
+        return manager().reload(name);
+    }
+
+    private static ModManager manager() {
+        if (lm == null) lm = ModManager.get(activity);
+        return lm;
+    }
+
     public static void onLoad(Context ctx) {
         Activity act = (Activity) ctx;
         activity = act;
         
         //if(!FeatureSettings.getInstance().isNCMEnabled()) return;
         lm = ModManager.get(ctx);
-        clearCache(ctx);
-        copyAllLibs(ctx);
-        loadAllLibs(ctx);
-        
+        Metrics.Scope metrics = Metrics.get().loader();
+        File modsDir = new File(MODLOADER_DIR, "mods");
+        File configFile = new File(modsDir, "ncmodloader_config.json");
+        File planFile = LoadPlan.file(ctx);
+
+        long start = System.nanoTime();
+        LoadPlan plan = null;
+        try {
+            plan = LoadPlan.read(planFile, LoadPlan.fingerprint(modsDir, configFile));
+        } catch (IOException e) {
+            Logger.get().warn("Failed to fingerprint mods, replanning: " + e);
+        }
+
+        if (plan != null) {
+            for (LoadPlan.Entry e : plan.getEntries()) {
+                if (lm.isPackStaged(e)) continue;
+                Logger.get().info("Custom pack of " + e.name + " is gone or unregistered, restaging it");
+                metrics.counter("plan.pack_restaged").inc();
+                // still stale next launch, replan from scratch then
+                if (!lm.restagePack(e)) planFile.delete();
+            }
+            metrics.counter("plan.hit").inc();
+            metrics.histogram("plan.hit_us").recordSince(start);
+            Logger.get().info("Load plan up to date (" + plan.getEntries().size() + " mods), planned in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } else {
+            long phase = System.nanoTime();
+            clearCache(ctx);
+            metrics.histogram("phase.clear_cache_us").recordSince(phase);
+
+            phase = System.nanoTime();
+            copyAllLibs(ctx);
+            metrics.histogram("phase.copy_us").recordSince(phase);
+
+            phase = System.nanoTime();
+            List<LoadPlan.Entry> entries = new ArrayList<>();
+            Map<String, String> logLevels = new LinkedHashMap<>();
+            boolean complete = planAllLibs(ctx, entries, logLevels);
+            // natives of a mod that failed to stage are extracted again next time anyway
+            lm.pruneNatives(entries);
+            metrics.histogram("phase.plan_us").recordSince(phase);
+
+            try {
+                plan = new LoadPlan(LoadPlan.fingerprint(modsDir, configFile), entries, logLevels);
+                // a mod that failed to stage gets another chance next launch
+                if (complete) plan.write(planFile);
+                else planFile.delete();
+            } catch (IOException e) {
+                plan = new LoadPlan(0, entries, logLevels);
+                Logger.get().warn("Failed to save load plan: " + e);
+            }
+            metrics.counter("plan.miss").inc();
+            metrics.histogram("plan.miss_us").recordSince(start);
+            Logger.get().info("Load plan rebuilt (" + entries.size() + " mods), planned in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+
+        Logger.loadLevels(plan.getLogLevels());
+        start = System.nanoTime();
+        runPlan(plan);
+        metrics.histogram("phase.load_us").recordSince(start);
+
+        watchConfig(configFile);
+
+        Metrics.get().setSnapshotInterval(METRICS_INTERVAL_MS);
     }
 
     public static void clearCache(Context ctx) {
@@ -58,10 +182,12 @@ public class NCModloader {
             File[] mods = externalLibs.listFiles();
             if (mods == null) mods = new File[0];
 
+            Metrics.Scope metrics = Metrics.get().loader();
             for (File mod : mods) {
                 if (mod.getName().endsWith(".ncm")) {
                     File dest = new File(internalLibs, mod.getName() + ".jar");
-                    Utils.copyFile(mod, dest);
+                    metrics.counter("copy.bytes").add(Utils.copyFile(mod, dest));
+                    metrics.counter("copy.files").inc();
                 }
             }
 
@@ -92,6 +218,7 @@ public class NCModloader {
                     newObj.put("name", name);
                     newObj.put("enabled", existing.optBoolean("enabled", true));
                     newObj.put("order", existing.optInt("order", order));
+                    if (existing.has("log_level")) newObj.put("log_level", existing.optString("log_level"));
                 } else {
                     newObj.put("name", name);
                     newObj.put("enabled", true);
@@ -111,8 +238,78 @@ public class NCModloader {
     }
 
     public static void loadAllLibs(Context ctx) {
+        List<LoadPlan.Entry> entries = new ArrayList<>();
+        Map<String, String> logLevels = new LinkedHashMap<>();
+        planAllLibs(ctx, entries, logLevels);
+        Logger.loadLevels(logLevels);
+        runPlan(new LoadPlan(0, entries, logLevels));
+    }
+
+    /** Re-reads the per-mod "log_level" entries of ncmodloader_config.json. */
+    public static void reloadLogLevels() {
+        File configFile = new File(MODLOADER_DIR, "mods/ncmodloader_config.json");
+        Map<String, String> logLevels = new LinkedHashMap<>();
         try {
-            File configFile = new File("/storage/emulated/0/games/NexCaise/ModLoader/mods/ncmodloader_config.json");
+            if (configFile.exists()) {
+                JSONArray array = new JSONArray(new String(Utils.readAllBytes(configFile)));
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject obj = array.getJSONObject(i);
+                    if (obj.has("log_level")) logLevels.put(obj.getString("name"), obj.getString("log_level"));
+                }
+            }
+            Logger.loadLevels(logLevels);
+        } catch (Exception e) {
+            Logger.get().warn("Failed to reload log levels: " + e);
+        }
+    }
+
+    private static synchronized void watchConfig(final File configFile) {
+        if (configObserver != null) return;
+        File dir = configFile.getParentFile();
+        configObserver = Build.VERSION.SDK_INT >= 29 ? new ConfigObserver(dir, configFile) : new ConfigObserver(dir.getPath(), configFile);
+        configObserver.startWatching();
+    }
+
+    // reloads the log levels whenever the config is written or moved into place
+    private static final class ConfigObserver extends FileObserver {
+        private static final int MASK = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+        private final File configFile;
+
+        ConfigObserver(File dir, File configFile) {
+            super(dir, MASK);
+            this.configFile = configFile;
+        }
+
+        // the only constructor before API 29, deprecated from then on
+        @SuppressWarnings("deprecation")
+        ConfigObserver(String dir, File configFile) {
+            super(dir, MASK);
+            this.configFile = configFile;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if (configFile.getName().equals(path)) reloadLogLevels();
+        }
+    }
+
+    public static void runPlan(LoadPlan plan) {
+        for (LoadPlan.Entry e : plan.getEntries()) {
+            Logger.get().info("Loading -> " + e.name);
+            lm.load(e);
+            Logger.get().info("Loaded -> " + e.name + " Done!");
+        }
+    }
+
+    /**
+     * Stages every enabled mod in config order and collects the result in
+     * {@code out}, and the configured "log_level"s in {@code logLevels}.
+     * Returns false when a mod failed to stage.
+     */
+    static boolean planAllLibs(Context ctx, List<LoadPlan.Entry> out, Map<String, String> logLevels) {
+        boolean complete = true;
+        try {
+            File configFile = new File(MODLOADER_DIR, "mods/ncmodloader_config.json");
             List<ModConfig> configs = new ArrayList<>();
 
             if (configFile.exists()) {
@@ -124,7 +321,8 @@ public class NCModloader {
                     configs.add(new ModConfig(
                         obj.getString("name"),
                         obj.optBoolean("enabled", true),
-                        obj.optInt("order", 0)
+                        obj.optInt("order", 0),
+                        obj.has("log_level") ? obj.getString("log_level") : null
                     ));
                 }
 
@@ -135,12 +333,13 @@ public class NCModloader {
                 });
 
                 for (ModConfig c : configs) {
+                    if (c.logLevel != null) logLevels.put(c.name, c.logLevel);
                     if (!c.enabled) continue;
                     File internalLib = new File(ctx.getDir("ncmodloader", Context.MODE_PRIVATE), "mods/" + c.name + ".jar");
                     if (internalLib.exists()) {
-                        Logger.get().info("Loading -> " + c.name);
-                        lm.loadLib(internalLib);
-                        Logger.get().info("Loaded -> " + c.name + " Done!");
+                        LoadPlan.Entry e = lm.prepare(internalLib);
+                        if (e != null) out.add(e);
+                        else complete = false;
                     } else {
                         Logger.get().warn("Skipped -> " + c.name + " (not found)");
                     }
@@ -152,26 +351,33 @@ public class NCModloader {
                 if (jars != null) {
                     for (File jar : jars) {
                         if (!jar.getName().endsWith(".ncm.jar")) continue;
-                        Logger.get().info("Loading -> " + jar.getName());
-                        ModManager.get(ctx).loadLib(jar);
-                        Logger.get().info("Loaded -> " + jar.getName() + " Done!");
+                        LoadPlan.Entry e = lm.prepare(jar);
+                        if (e != null) out.add(e);
+                        else complete = false;
                     }
                 }
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        return complete;
     }
 
     public static class ModConfig {
         public String name;
         public boolean enabled;
         public int order;
+        public String logLevel;
 
         public ModConfig(String name, boolean enabled, int order) {
+            this(name, enabled, order, null);
+        }
+
+        public ModConfig(String name, boolean enabled, int order, String logLevel) {
             this.name = name;
             this.enabled = enabled;
             this.order = order;
+            this.logLevel = logLevel;
         }
     }
 }
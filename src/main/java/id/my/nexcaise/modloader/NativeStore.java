@@ -0,0 +1,264 @@
+package id.my.nexcaise.ncmodloader;
+
+import android.system.Os;
+import java.io.*;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Content-addressed store for native libraries extracted from mods.
+ *
+ * Every .so is stored once under its SHA-256 and hard linked into each mod's
+ * native dir, so a library bundled by several mods (libc++_shared.so, ...) is
+ * written and kept on disk only once. An index of (crc32, size) -> sha256,
+ * taken from the zip central directory, tells which entries are probably
+ * already stored: those are hashed without writing; everything else is
+ * written and hashed in the same pass.
+ *
+ * Only libraries another mod's dir links too count as duplicates; a library
+ * the store kept from an earlier launch for the same mod is a cache reuse.
+ * Entries nothing links anymore are removed by {@link #prune()}.
+ */
+public final class NativeStore {
+
+    private static final String INDEX_FILE = "index";
+
+    private final File storeDir;
+    // "<crc32>:<size>" -> sha256 of everything in the store, guarded by this
+    private final Map<String, String> index = new HashMap<>();
+    // sha256 -> first mod that linked it in this process, for the report
+    private final Map<String, String> owners = new HashMap<>();
+    private long writtenBytes;
+    private long writtenNanos;
+
+    private static final Map<String, NativeStore> STORES = new HashMap<>();
+
+    private NativeStore(File storeDir) {
+        this.storeDir = storeDir;
+        loadIndex();
+    }
+
+    public static NativeStore get(File storeDir) {
+        synchronized (STORES) {
+            NativeStore s = STORES.get(storeDir.getAbsolutePath());
+            if (s == null) {
+                s = new NativeStore(storeDir);
+                STORES.put(storeDir.getAbsolutePath(), s);
+            }
+            return s;
+        }
+    }
+
+    /** Outcome of one {@link #extract} call. */
+    public static final class Result {
+        public int files;
+        public long bytes;
+        /** Libraries another mod links too, written once for both. */
+        public int duplicates;
+        public long savedBytes;
+        /** Libraries only this mod uses, kept by the store from an earlier launch. */
+        public int reused;
+        public long reusedBytes;
+        /** Estimated from this process' write throughput, 0 until something was written. */
+        public long savedNanos;
+        public final List<String> duplicateNames = new ArrayList<>();
+    }
+
+    /**
+     * Links every file under {@code src/} of the jar into {@code dst}, storing
+     * content not seen before. Replaces what {@link Utils#copyFolderFromJar} did
+     * for natives.
+     */
+    public synchronized Result extract(String jar, String src, File dst, String modName) throws IOException {
+        if (!storeDir.exists() && !storeDir.mkdirs()) throw new IOException("Failed to create " + storeDir);
+        Result result = new Result();
+        try (ZipFile zip = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry en = e.nextElement();
+                if (!en.getName().startsWith(src + "/") || en.isDirectory()) continue;
+                File outFile = new File(dst, en.getName().substring(src.length() + 1));
+                File parent = outFile.getParentFile();
+                if (parent != null && !parent.exists()) parent.mkdirs();
+
+                String key = Long.toHexString(en.getCrc()) + ":" + en.getSize();
+                String sha = index.get(key);
+                File stored = sha != null ? new File(storeDir, sha) : null;
+                boolean hit = stored != null && stored.exists() && sha.equals(hash(zip, en));
+                if (!hit) {
+                    sha = store(zip, en);
+                    stored = new File(storeDir, sha);
+                    index.put(key, sha);
+                    appendIndex(key, sha);
+                }
+                // our own link from the last extraction must not look like another mod's
+                if (outFile.exists() && !outFile.delete()) throw new IOException("Failed to replace " + outFile);
+                if (hit) {
+                    String owner = owners.get(sha);
+                    if (owner != null && owner.equals(modName)) owner = null;
+                    long links = linkCount(stored);
+                    if (links > 1 || (links < 0 && owner != null)) {
+                        result.duplicates++;
+                        result.savedBytes += en.getSize();
+                        result.duplicateNames.add(outFile.getName() + (owner != null ? " (also in " + owner + ")" : ""));
+                    } else {
+                        result.reused++;
+                        result.reusedBytes += en.getSize();
+                    }
+                }
+                if (!owners.containsKey(sha)) owners.put(sha, modName);
+                link(stored, outFile);
+                result.files++;
+                result.bytes += stored.length();
+            }
+        }
+        if (writtenBytes > 0) result.savedNanos = (long) (result.savedBytes * ((double) writtenNanos / writtenBytes));
+        return result;
+    }
+
+    /**
+     * Deletes stored libraries no mod dir links anymore (link count 1, only the
+     * store itself), e.g. old versions of updated or removed mods, and leftover
+     * temp files. Returns the number of bytes freed.
+     */
+    public synchronized long prune() {
+        File[] files = storeDir.listFiles();
+        if (files == null) return 0;
+        long freed = 0;
+        Set<String> removed = new HashSet<>();
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(".tmp")) {
+                f.delete();
+                continue;
+            }
+            if (name.length() != 64) continue;
+            long links = linkCount(f);
+            if (links < 0) {
+                Logger.get().w("Link count unavailable, native store not pruned");
+                return freed;
+            }
+            if (links != 1) continue;
+            long size = f.length();
+            if (f.delete()) {
+                freed += size;
+                removed.add(name);
+            }
+        }
+        if (!removed.isEmpty()) {
+            index.values().removeAll(removed);
+            owners.keySet().removeAll(removed);
+            rewriteIndex();
+            Logger.get().i("Pruned " + removed.size() + " unused native libs from the store, freed " + freed / 1024 + " KiB");
+        }
+        return freed;
+    }
+
+    // -1 when neither libcore nor the nio "unix" view can tell
+    private static long linkCount(File f) {
+        try {
+            return Os.stat(f.getAbsolutePath()).st_nlink;
+        } catch (Throwable t) {
+            // not on Android
+        }
+        try {
+            return ((Number) Files.getAttribute(f.toPath(), "unix:nlink")).longValue();
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    // writes the entry into the store while hashing it, returns its sha256
+    private String store(ZipFile zip, ZipEntry en) throws IOException {
+        File tmp = File.createTempFile("lib", ".tmp", storeDir);
+        MessageDigest md = Utils.sha256();
+        long start = System.nanoTime();
+        long n;
+        try (InputStream in = new DigestInputStream(zip.getInputStream(en), md);
+             OutputStream out = new FileOutputStream(tmp)) {
+            n = Utils.copyStream(in, out);
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        writtenNanos += System.nanoTime() - start;
+        writtenBytes += n;
+
+        String sha = Utils.toHex(md.digest());
+        File stored = new File(storeDir, sha);
+        if (stored.exists()) {
+            // same content under a crc/size we had not indexed yet
+            tmp.delete();
+        } else {
+            if (!tmp.renameTo(stored)) {
+                tmp.delete();
+                throw new IOException("Failed to store " + en.getName());
+            }
+            // shared by hard links, nobody may write through one of them
+            stored.setReadOnly();
+        }
+        return sha;
+    }
+
+    private static String hash(ZipFile zip, ZipEntry en) throws IOException {
+        MessageDigest md = Utils.sha256();
+        byte[] buf = new byte[8192];
+        try (InputStream in = zip.getInputStream(en)) {
+            int len;
+            while ((len = in.read(buf)) != -1) md.update(buf, 0, len);
+        }
+        return Utils.toHex(md.digest());
+    }
+
+    private static void link(File stored, File target) throws IOException {
+        // unlink first, never write into a file another mod's dir may share
+        if (target.exists() && !target.delete()) throw new IOException("Failed to replace " + target);
+        try {
+            Files.createLink(target.toPath(), stored.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Logger.get().w("Hard link failed for " + target.getName() + ", copying instead: " + e);
+            Utils.copyFile(stored, target);
+        }
+    }
+
+    private void loadIndex() {
+        File f = new File(storeDir, INDEX_FILE);
+        if (!f.exists()) return;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space <= 0) continue;
+                String sha = line.substring(space + 1);
+                if (new File(storeDir, sha).exists()) index.put(line.substring(0, space), sha);
+            }
+        } catch (IOException e) {
+            Logger.get().w("Failed to read native store index, starting empty: " + e);
+        }
+    }
+
+    private void rewriteIndex() {
+        File f = new File(storeDir, INDEX_FILE);
+        File tmp = Utils.tempFileFor(f);
+        try {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+                for (Map.Entry<String, String> e : index.entrySet()) w.write(e.getKey() + " " + e.getValue() + "\n");
+            }
+            Utils.replaceFile(tmp, f);
+        } catch (IOException e) {
+            tmp.delete();
+            Logger.get().w("Failed to rewrite native store index: " + e);
+        }
+    }
+
+    private void appendIndex(String key, String sha) {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(new File(storeDir, INDEX_FILE), true), "UTF-8")) {
+            w.write(key + " " + sha + "\n");
+        } catch (IOException e) {
+            Logger.get().w("Failed to update native store index: " + e);
+        }
+    }
+}
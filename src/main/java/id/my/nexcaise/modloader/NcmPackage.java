@@ -0,0 +1,207 @@
+package id.my.nexcaise.ncmodloader;
+
+import android.system.Os;
+import android.system.OsConstants;
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import org.json.*;
+
+/**
+ * Index of a v2 .ncm package.
+ *
+ * A v2 package is still a plain zip, laid out by {@link NcmPacker}:
+ * {@code manifest.json} first, then {@code ncm_index.json} (stored), then the
+ * payload. Natives and assets are stored uncompressed and aligned so they can
+ * be used straight from the package, and the index lists the data offset,
+ * size and SHA-256 of every entry per section. Jars without the index are
+ * legacy packages and {@link #open(File)} returns null for them.
+ */
+public final class NcmPackage {
+
+    public static final int FORMAT_VERSION = 2;
+    public static final String MANIFEST_ENTRY = "manifest.json";
+    public static final String INDEX_ENTRY = "ncm_index.json";
+    public static final int PAGE_ALIGNMENT = 4096;
+    // largest page size in use (16 KiB on Android 15+), as zipalign -P 16 does
+    public static final int LIB_ALIGNMENT = 16384;
+
+    public static final String SECTION_DEX = "dex";
+    public static final String SECTION_LIB = "lib";
+    public static final String SECTION_ASSETS = "assets";
+    public static final String SECTION_CUSTOM_PACK = "custom_pack";
+    public static final String SECTION_OTHER = "other";
+
+    private final File file;
+    private final String digest;
+    private final Entry manifest;
+    private final Map<String, List<Entry>> sections;
+
+    NcmPackage(File file, String digest, Entry manifest, Map<String, List<Entry>> sections) {
+        this.file = file;
+        this.digest = digest;
+        this.manifest = manifest;
+        this.sections = sections;
+    }
+
+    /** Reads the index of a v2 package, or returns null for a legacy jar. */
+    public static NcmPackage open(File file) {
+        try (ZipFile zip = new ZipFile(file)) {
+            ZipEntry entry = zip.getEntry(INDEX_ENTRY);
+            if (entry == null) return null;
+            JSONObject index;
+            try (InputStream in = zip.getInputStream(entry)) {
+                index = new JSONObject(new String(readFully(in), "UTF-8"));
+            }
+            if (index.optInt("format", 0) != FORMAT_VERSION) {
+                Logger.get().w("Unsupported .ncm format " + index.optInt("format", 0) + " in " + file.getName() + ", loading as legacy");
+                return null;
+            }
+            return fromJson(file, index);
+        } catch (Exception e) {
+            Logger.get().w("Failed to read .ncm index of " + file.getName() + ": " + e);
+            return null;
+        }
+    }
+
+    static NcmPackage fromJson(File file, JSONObject index) throws JSONException {
+        Map<String, List<Entry>> sections = new LinkedHashMap<>();
+        JSONObject s = index.getJSONObject("sections");
+        Iterator<String> keys = s.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            JSONArray arr = s.getJSONArray(key);
+            List<Entry> list = new ArrayList<>(arr.length());
+            for (int i = 0; i < arr.length(); i++) list.add(Entry.fromJson(arr.getJSONObject(i)));
+            sections.put(key, Collections.unmodifiableList(list));
+        }
+        Entry manifest = index.has("manifest") ? Entry.fromJson(index.getJSONObject("manifest")) : null;
+        return new NcmPackage(file, index.getString("digest"), manifest, sections);
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject index = new JSONObject();
+        index.put("format", FORMAT_VERSION);
+        index.put("alignment", PAGE_ALIGNMENT);
+        index.put("lib_alignment", LIB_ALIGNMENT);
+        index.put("digest", digest);
+        if (manifest != null) index.put("manifest", manifest.toJson());
+        JSONObject s = new JSONObject();
+        for (Map.Entry<String, List<Entry>> e : sections.entrySet()) {
+            JSONArray arr = new JSONArray();
+            for (Entry en : e.getValue()) arr.put(en.toJson());
+            s.put(e.getKey(), arr);
+        }
+        index.put("sections", s);
+        return index;
+    }
+
+    public File getFile() { return file; }
+    public String getDigest() { return digest; }
+    public Entry getManifest() { return manifest; }
+    public Set<String> getSections() { return sections.keySet(); }
+
+    public List<Entry> entries(String section) {
+        List<Entry> list = sections.get(section);
+        return list != null ? list : Collections.<Entry>emptyList();
+    }
+
+    public boolean hasSection(String section) {
+        return !entries(section).isEmpty();
+    }
+
+    /**
+     * True when every entry of the section is stored and aligned to this
+     * device's page size, i.e. can be mapped in place. Packages aligned for
+     * 4 KiB pages are not mappable on 16 KiB devices and must be extracted.
+     */
+    public boolean isMappable(String section) {
+        List<Entry> list = entries(section);
+        if (list.isEmpty()) return false;
+        long pageSize = pageSize();
+        for (Entry e : list) {
+            if (!e.stored || e.offset % pageSize != 0) return false;
+        }
+        return true;
+    }
+
+    private static long pageSize;
+
+    static synchronized long pageSize() {
+        if (pageSize > 0) return pageSize;
+        try {
+            pageSize = Os.sysconf(OsConstants._SC_PAGESIZE);
+        } catch (Throwable t) {
+            Logger.get().w("Failed to read page size, assuming " + LIB_ALIGNMENT + ": " + t);
+        }
+        // an unknown page size must not make a package look mappable
+        if (pageSize <= 0) pageSize = LIB_ALIGNMENT;
+        return pageSize;
+    }
+
+    /** Looks up the zip entries of a section by name, without enumerating the archive. */
+    public List<ZipEntry> zipEntries(ZipFile zip, String section) {
+        List<Entry> list = entries(section);
+        List<ZipEntry> out = new ArrayList<>(list.size());
+        for (Entry e : list) {
+            ZipEntry ze = zip.getEntry(e.name);
+            if (ze != null) out.add(ze);
+        }
+        return out;
+    }
+
+    static String sectionOf(String name) {
+        if (name.startsWith("lib/")) return SECTION_LIB;
+        if (name.startsWith("assets/")) return SECTION_ASSETS;
+        if (name.startsWith("custom_pack/")) return SECTION_CUSTOM_PACK;
+        if (name.indexOf('/') < 0 && name.endsWith(".dex")) return SECTION_DEX;
+        return SECTION_OTHER;
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Utils.copyStream(in, baos);
+        return baos.toByteArray();
+    }
+
+    public static final class Entry {
+        public final String name;
+        // offset of the entry data (not the local header) from the start of the file
+        public final long offset;
+        public final long size;
+        public final long compressedSize;
+        public final boolean stored;
+        public final String sha256;
+
+        Entry(String name, long offset, long size, long compressedSize, boolean stored, String sha256) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.stored = stored;
+            this.sha256 = sha256;
+        }
+
+        static Entry fromJson(JSONObject o) throws JSONException {
+            return new Entry(
+                o.getString("name"),
+                o.getLong("offset"),
+                o.getLong("size"),
+                o.getLong("csize"),
+                "stored".equals(o.getString("method")),
+                o.getString("sha256")
+            );
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("name", name);
+            o.put("offset", offset);
+            o.put("size", size);
+            o.put("csize", compressedSize);
+            o.put("method", stored ? "stored" : "deflated");
+            o.put("sha256", sha256);
+            return o;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package id.my.nexcaise.ncmodloader;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.*;
+import org.json.*;
+
+/**
+ * Command line packer and validator for v2 .ncm packages.
+ *
+ * <pre>
+ *   NcmPacker pack   &lt;input.ncm|jar&gt; &lt;output.ncm&gt;
+ *   NcmPacker verify &lt;file.ncm&gt;
+ *   NcmPacker selftest
+ * </pre>
+ *
+ * See {@link NcmPackage} for the layout.
+ */
+public final class NcmPacker {
+
+    // 1980-02-01, inside the DOS time range so no extended timestamp is written
+    private static final long FIXED_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis();
+    // Android zipalign extra field id, the linker and zipalign both understand it
+    private static final int ALIGNMENT_EXTRA_ID = 0xD935;
+    // id, size and the alignment value itself
+    private static final int ALIGNMENT_EXTRA_MIN = 6;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_PASSES = 4;
+
+    private NcmPacker() {}
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 3 && "pack".equals(args[0])) {
+                NcmPackage pkg = pack(new File(args[1]), new File(args[2]));
+                int count = pkg.getManifest() != null ? 1 : 0;
+                for (String s : pkg.getSections()) count += pkg.entries(s).size();
+                System.out.println("Packed " + count + " entries into " + args[2]);
+                System.out.println("digest: " + pkg.getDigest());
+                return;
+            }
+            if (args.length == 2 && "verify".equals(args[0])) {
+                List<String> problems = verify(new File(args[1]));
+                if (problems.isEmpty()) {
+                    System.out.println(args[1] + ": valid v2 package");
+                    return;
+                }
+                for (String p : problems) System.err.println(args[1] + ": " + p);
+                System.exit(1);
+            }
+            if (args.length == 1 && "selftest".equals(args[0])) {
+                List<String> problems = selfTest();
+                if (problems.isEmpty()) {
+                    System.out.println("selftest passed");
+                    return;
+                }
+                for (String p : problems) System.err.println("selftest: " + p);
+                System.exit(1);
+            }
+        } catch (Exception e) {
+            System.err.println("error: " + e);
+            System.exit(1);
+        }
+        System.err.println("usage: NcmPacker pack <input.ncm|jar> <output.ncm>");
+        System.err.println("       NcmPacker verify <file.ncm>");
+        System.err.println("       NcmPacker selftest");
+        System.exit(2);
+    }
+
+    /** Repacks an existing mod (legacy or v2) into the v2 layout. */
+    public static NcmPackage pack(File input, File output) throws IOException {
+        List<Item> items = readItems(input);
+        if (items.isEmpty() || !NcmPackage.MANIFEST_ENTRY.equals(items.get(0).name))
+            throw new IOException(NcmPackage.MANIFEST_ENTRY + " not found in " + input);
+        String digest = digest(items);
+
+        // the index has a fixed reserved size, so writing the real one keeps every offset in place
+        int reserved = NcmPackage.PAGE_ALIGNMENT;
+        for (int pass = 0; pass < MAX_PASSES; pass++) {
+            long[] headers = write(items, new byte[reserved], output);
+            NcmPackage layout = layout(items, headers, digest, output);
+            byte[] index;
+            try {
+                index = layout.toJson().toString().getBytes("UTF-8");
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+            if (index.length > reserved) {
+                reserved = roundUp(index.length + 1024, NcmPackage.PAGE_ALIGNMENT);
+                continue;
+            }
+            byte[] padded = new byte[reserved];
+            Arrays.fill(padded, (byte) ' ');
+            System.arraycopy(index, 0, padded, 0, index.length);
+            long[] written = write(items, padded, output);
+            if (!Arrays.equals(headers, written))
+                throw new IOException("Layout changed between passes, output is not deterministic");
+            List<String> problems = verify(output);
+            if (!problems.isEmpty()) throw new IOException("Packed file failed validation: " + problems);
+            return layout;
+        }
+        throw new IOException("Index does not fit after " + MAX_PASSES + " passes");
+    }
+
+    /** Checks a v2 package; returns an empty list when it is valid. */
+    public static List<String> verify(File file) throws IOException {
+        List<String> problems = new ArrayList<>();
+        NcmPackage pkg = NcmPackage.open(file);
+        if (pkg == null) {
+            problems.add("no " + NcmPackage.INDEX_ENTRY + ", not a v2 package");
+            return problems;
+        }
+
+        List<Item> items = new ArrayList<>();
+        Set<String> indexed = new HashSet<>();
+        try (ZipFile zip = new ZipFile(file); RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            Enumeration<? extends ZipEntry> order = zip.entries();
+            String first = order.hasMoreElements() ? order.nextElement().getName() : null;
+            String second = order.hasMoreElements() ? order.nextElement().getName() : null;
+            if (!NcmPackage.MANIFEST_ENTRY.equals(first)) problems.add("first entry is " + first + ", expected " + NcmPackage.MANIFEST_ENTRY);
+            if (!NcmPackage.INDEX_ENTRY.equals(second)) problems.add("second entry is " + second + ", expected " + NcmPackage.INDEX_ENTRY);
+
+            List<NcmPackage.Entry> all = new ArrayList<>();
+            if (pkg.getManifest() != null) all.add(pkg.getManifest());
+            else problems.add("index has no manifest entry");
+            for (String section : pkg.getSections()) {
+                for (NcmPackage.Entry e : pkg.entries(section)) {
+                    all.add(e);
+                    if (!section.equals(NcmPackage.sectionOf(e.name))) problems.add(e.name + ": listed under section " + section);
+                    int alignment = alignmentOf(e.name, e.size);
+                    if (alignment > 0 && (!e.stored || e.offset % alignment != 0))
+                        problems.add(e.name + ": not stored with " + alignment + " byte alignment");
+                }
+            }
+
+            for (NcmPackage.Entry e : all) {
+                indexed.add(e.name);
+                ZipEntry ze = zip.getEntry(e.name);
+                if (ze == null) {
+                    problems.add(e.name + ": indexed but missing");
+                    continue;
+                }
+                if (ze.getSize() != e.size) problems.add(e.name + ": size " + ze.getSize() + " != indexed " + e.size);
+                byte[] data;
+                try (InputStream in = zip.getInputStream(ze)) {
+                    data = NcmPackage.readFully(in);
+                }
+                String sha = Utils.toHex(sha256(data));
+                if (!sha.equals(e.sha256)) problems.add(e.name + ": sha256 mismatch");
+                // reading from the indexed offset proves the offset is right
+                byte[] raw = readRaw(raf, e);
+                if (raw == null || !Arrays.equals(raw, data)) problems.add(e.name + ": data not found at indexed offset " + e.offset);
+                items.add(new Item(e.name, data));
+            }
+
+            for (Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements(); ) {
+                ZipEntry ze = en.nextElement();
+                if (ze.isDirectory() || NcmPackage.INDEX_ENTRY.equals(ze.getName())) continue;
+                if (!indexed.contains(ze.getName())) problems.add(ze.getName() + ": not in index");
+            }
+        }
+
+        if (!digest(items).equals(pkg.getDigest())) problems.add("content digest mismatch");
+        return problems;
+    }
+
+    /**
+     * Packs small synthetic mods with asset names of every length mod 8 (so
+     * every possible alignment padding is hit), verifies them, checks the lib
+     * alignment and that repacking the output is byte identical.
+     */
+    public static List<String> selfTest() throws IOException {
+        List<String> problems = new ArrayList<>();
+        File dir = File.createTempFile("ncmpacker", "");
+        if (!dir.delete() || !dir.mkdirs()) throw new IOException("Failed to create " + dir);
+        try {
+            for (int len = 1; len <= 16; len++) {
+                char[] name = new char[len];
+                Arrays.fill(name, 'x');
+                File in = new File(dir, "in" + len + ".jar");
+                try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(in))) {
+                    putEntry(zos, 0, NcmPackage.MANIFEST_ENTRY, "{}".getBytes("UTF-8"), false, 0);
+                    putEntry(zos, 0, "assets/" + new String(name), new byte[10], false, 0);
+                    putEntry(zos, 0, "lib/arm64-v8a/libfoo.so", new byte[100], false, 0);
+                }
+                File out = new File(dir, "out" + len + ".ncm");
+                File again = new File(dir, "again" + len + ".ncm");
+                try {
+                    NcmPackage pkg = pack(in, out);
+                    for (NcmPackage.Entry e : pkg.entries(NcmPackage.SECTION_LIB)) {
+                        if (e.offset % NcmPackage.LIB_ALIGNMENT != 0) problems.add("name length " + len + ": " + e.name + " at " + e.offset);
+                    }
+                    pack(out, again);
+                    if (!Arrays.equals(Utils.readAllBytes(out), Utils.readAllBytes(again)))
+                        problems.add("name length " + len + ": repacking is not byte identical");
+                } catch (Exception e) {
+                    problems.add("name length " + len + ": " + e);
+                }
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) for (File f : files) f.delete();
+            dir.delete();
+        }
+        return problems;
+    }
+
+    private static List<Item> readItems(File input) throws IOException {
+        Item manifest = null;
+        List<Item> rest = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(input)) {
+            for (Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements(); ) {
+                ZipEntry ze = en.nextElement();
+                if (ze.isDirectory() || NcmPackage.INDEX_ENTRY.equals(ze.getName())) continue;
+                byte[] data;
+                try (InputStream in = zip.getInputStream(ze)) {
+                    data = NcmPackage.readFully(in);
+                }
+                Item item = new Item(ze.getName(), data);
+                if (NcmPackage.MANIFEST_ENTRY.equals(item.name)) manifest = item;
+                else rest.add(item);
+            }
+        }
+        // grouped by section so natives and assets sit together, sorted for reproducible output
+        final List<String> sectionOrder = Arrays.asList(
+            NcmPackage.SECTION_DEX, NcmPackage.SECTION_LIB, NcmPackage.SECTION_ASSETS,
+            NcmPackage.SECTION_CUSTOM_PACK, NcmPackage.SECTION_OTHER);
+        Collections.sort(rest, new Comparator<Item>() {
+            public int compare(Item a, Item b) {
+                int c = Integer.compare(sectionOrder.indexOf(a.section), sectionOrder.indexOf(b.section));
+                return c != 0 ? c : a.name.compareTo(b.name);
+            }
+        });
+        List<Item> items = new ArrayList<>();
+        if (manifest != null) items.add(manifest);
+        items.addAll(rest);
+        return items;
+    }
+
+    // returns the local header offset of every item
+    private static long[] write(List<Item> items, byte[] index, File output) throws IOException {
+        long[] headers = new long[items.size()];
+        try (CountingOutputStream cos = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+             ZipOutputStream zos = new ZipOutputStream(cos)) {
+            zos.setLevel(Deflater.BEST_COMPRESSION);
+            for (int i = 0; i < items.size(); i++) {
+                Item item = items.get(i);
+                headers[i] = cos.count;
+                putEntry(zos, cos.count, item.name, item.data, item.stored(), alignmentOf(item.name, item.data.length));
+                if (i == 0) putEntry(zos, cos.count, NcmPackage.INDEX_ENTRY, index, true, 0);
+            }
+        }
+        return headers;
+    }
+
+    private static void putEntry(ZipOutputStream zos, long headerOffset, String name, byte[] data, boolean stored, int alignment) throws IOException {
+        ZipEntry e = new ZipEntry(name);
+        e.setTime(FIXED_TIME);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            e.setMethod(ZipEntry.STORED);
+            e.setSize(data.length);
+            e.setCompressedSize(data.length);
+            e.setCrc(crc.getValue());
+            if (alignment > 0) {
+                long dataStart = headerOffset + LOCAL_HEADER_SIZE + name.getBytes("UTF-8").length;
+                int pad = (int) ((alignment - dataStart % alignment) % alignment);
+                // the extra block needs 6 bytes for its own header
+                while (pad != 0 && pad < ALIGNMENT_EXTRA_MIN) pad += alignment;
+                if (pad > 0) e.setExtra(alignmentExtra(pad, alignment));
+            }
+        } else {
+            e.setMethod(ZipEntry.DEFLATED);
+        }
+        zos.putNextEntry(e);
+        zos.write(data);
+        zos.closeEntry();
+    }
+
+    private static byte[] alignmentExtra(int pad, int alignment) {
+        byte[] extra = new byte[pad];
+        int size = pad - 4;
+        extra[0] = (byte) (ALIGNMENT_EXTRA_ID & 0xff);
+        extra[1] = (byte) (ALIGNMENT_EXTRA_ID >>> 8);
+        extra[2] = (byte) (size & 0xff);
+        extra[3] = (byte) (size >>> 8);
+        extra[4] = (byte) (alignment & 0xff);
+        extra[5] = (byte) (alignment >>> 8);
+        return extra;
+    }
+
+    // 0 means no alignment requirement
+    static int alignmentOf(String name, long size) {
+        String section = NcmPackage.sectionOf(name);
+        if (NcmPackage.SECTION_LIB.equals(section)) return NcmPackage.LIB_ALIGNMENT;
+        // page-aligning tiny assets only wastes space, 4 bytes is what aapt uses
+        if (NcmPackage.SECTION_ASSETS.equals(section)) return size >= NcmPackage.PAGE_ALIGNMENT ? NcmPackage.PAGE_ALIGNMENT : 4;
+        return 0;
+    }
+
+    private static NcmPackage layout(List<Item> items, long[] headers, String digest, File output) throws IOException {
+        Map<String, List<NcmPackage.Entry>> sections = new LinkedHashMap<>();
+        NcmPackage.Entry manifest = null;
+        try (ZipFile zip = new ZipFile(output); RandomAccessFile raf = new RandomAccessFile(output, "r")) {
+            for (int i = 0; i < items.size(); i++) {
+                Item item = items.get(i);
+                raf.seek(headers[i] + 26);
+                int nameLen = raf.readUnsignedByte() | (raf.readUnsignedByte() << 8);
+                int extraLen = raf.readUnsignedByte() | (raf.readUnsignedByte() << 8);
+                long offset = headers[i] + LOCAL_HEADER_SIZE + nameLen + extraLen;
+                ZipEntry ze = zip.getEntry(item.name);
+                NcmPackage.Entry entry = new NcmPackage.Entry(item.name, offset, item.data.length,
+                    ze.getCompressedSize(), item.stored(), Utils.toHex(sha256(item.data)));
+                if (i == 0) {
+                    manifest = entry;
+                    continue;
+                }
+                List<NcmPackage.Entry> list = sections.get(item.section);
+                if (list == null) sections.put(item.section, list = new ArrayList<>());
+                list.add(entry);
+            }
+        }
+        return new NcmPackage(output, digest, manifest, sections);
+    }
+
+    private static byte[] readRaw(RandomAccessFile raf, NcmPackage.Entry e) throws IOException {
+        if (e.offset < 0 || e.offset + e.compressedSize > raf.length()) return null;
+        byte[] raw = new byte[(int) e.compressedSize];
+        raf.seek(e.offset);
+        raf.readFully(raw);
+        if (e.stored) return raw;
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(raw);
+            byte[] out = new byte[(int) e.size];
+            int n = 0;
+            while (n < out.length && !inflater.finished()) {
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += r;
+            }
+            return n == out.length ? out : null;
+        } catch (DataFormatException ex) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // sha256 over (name, 0, sha256(data)) of every entry, sorted by name
+    private static String digest(List<Item> items) throws IOException {
+        List<Item> sorted = new ArrayList<>(items);
+        Collections.sort(sorted, new Comparator<Item>() {
+            public int compare(Item a, Item b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        MessageDigest md = Utils.sha256();
+        for (Item item : sorted) {
+            md.update(item.name.getBytes("UTF-8"));
+            md.update((byte) 0);
+            md.update(sha256(item.data));
+        }
+        return Utils.toHex(md.digest());
+    }
+
+    private static byte[] sha256(byte[] data) {
+        return Utils.sha256().digest(data);
+    }
+
+    private static int roundUp(int value, int multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+
+    private static final class Item {
+        final String name;
+        final String section;
+        final byte[] data;
+
+        Item(String name, byte[] data) {
+            this.name = name;
+            this.section = NcmPackage.sectionOf(name);
+            this.data = data;
+        }
+
+        boolean stored() {
+            return NcmPackage.MANIFEST_ENTRY.equals(name) || alignmentOf(name, data.length) > 0;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) { super(out); }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import android.os.Build;
 import org.jetbrains.annotations.NotNull;
 import java.io.*;
 import java.lang.reflect.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.jar.*;
 import android.content.res.AssetManager;
@@ -24,9 +26,16 @@ public class Utils {
     }
 
     public static Object getPathList(@NotNull ClassLoader loader) throws ReflectiveOperationException {
-        Field field = Objects.requireNonNull(loader.getClass().getSuperclass()).getDeclaredField("pathList");
-        field.setAccessible(true);
-        return field.get(loader);
+        // pathList lives in BaseDexClassLoader, walk up so loader subclasses work too
+        for (Class<?> c = loader.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField("pathList");
+                field.setAccessible(true);
+                return field.get(loader);
+            } catch (NoSuchFieldException ignored) {
+            }
+        }
+        throw new NoSuchFieldException("pathList");
   }
 
   public static void injectNativeLibraries(String nld, Object pathList) throws ReflectiveOperationException {
@@ -36,7 +45,7 @@ public class Utils {
             Field nativeLibraryDirectoriesField = pathList.getClass().getDeclaredField("nativeLibraryDirectories");
             nativeLibraryDirectoriesField.setAccessible(true);
 
-            Collection<File> currentDirs = (Collection<File>) nativeLibraryDirectoriesField.get(pathList);
+            Collection<File> currentDirs = fileCollection(nativeLibraryDirectoriesField, pathList);
             if (currentDirs == null) {
                 currentDirs = new ArrayList<>();
             }
@@ -53,43 +62,70 @@ public class Utils {
             }
             libDirs.add(0, newLibDir);
             nativeLibraryDirectoriesField.set(pathList, libDirs);
+            rebuildNativeLibraryElements(pathList, new ArrayList<>(libDirs));
+        } catch (NoSuchFieldException | NoSuchMethodException e) {
+            throw new ReflectiveOperationException("Unable to inject native libraries", e);
+        }
+    }
 
-            Field nativeLibraryPathElementsField = pathList.getClass().getDeclaredField("nativeLibraryPathElements");
-            nativeLibraryPathElementsField.setAccessible(true);
+    public static void removeNativeLibraries(String nld, Object pathList) throws ReflectiveOperationException {
+        try {
+            final File libDir = new File(nld);
 
-            Object[] elements;
+            Field nativeLibraryDirectoriesField = pathList.getClass().getDeclaredField("nativeLibraryDirectories");
+            nativeLibraryDirectoriesField.setAccessible(true);
 
-            if (Build.VERSION.SDK_INT >= 25) {
-                Method makePathElements = pathList.getClass().getDeclaredMethod("makePathElements", List.class);
-                makePathElements.setAccessible(true);
+            Collection<File> currentDirs = fileCollection(nativeLibraryDirectoriesField, pathList);
+            if (currentDirs == null || !currentDirs.contains(libDir)) return;
 
-                Field systemNativeLibDirsField = pathList.getClass().getDeclaredField("systemNativeLibraryDirectories");
-                systemNativeLibDirsField.setAccessible(true);
-                List<File> systemLibDirs = (List<File>) systemNativeLibDirsField.get(pathList);
-                if (systemLibDirs != null) {
-                    libDirs.addAll(systemLibDirs);
-                }
+            List<File> libDirs = new ArrayList<>(currentDirs);
+            libDirs.remove(libDir);
+            nativeLibraryDirectoriesField.set(pathList, libDirs);
+            rebuildNativeLibraryElements(pathList, new ArrayList<>(libDirs));
+        } catch (NoSuchFieldException | NoSuchMethodException e) {
+            throw new ReflectiveOperationException("Unable to remove native libraries", e);
+        }
+    }
+
+    // DexPathList keeps these as raw collections of File
+    @SuppressWarnings("unchecked")
+    private static Collection<File> fileCollection(Field field, Object pathList) throws IllegalAccessException {
+        return (Collection<File>) field.get(pathList);
+    }
 
-                elements = (Object[]) makePathElements.invoke(pathList, libDirs);
-            } else {
-                Method makePathElements = pathList.getClass().getDeclaredMethod("makePathElements", List.class, File.class, List.class);
-                makePathElements.setAccessible(true);
+    // libDirs is extended with the system dirs, pass a copy
+    private static void rebuildNativeLibraryElements(Object pathList, List<File> libDirs) throws ReflectiveOperationException {
+        Field nativeLibraryPathElementsField = pathList.getClass().getDeclaredField("nativeLibraryPathElements");
+        nativeLibraryPathElementsField.setAccessible(true);
 
-                Field systemNativeLibDirsField = pathList.getClass().getDeclaredField("systemNativeLibraryDirectories");
-                systemNativeLibDirsField.setAccessible(true);
-                List<File> systemLibDirs = (List<File>) systemNativeLibDirsField.get(pathList);
-                if (systemLibDirs != null) {
-                    libDirs.addAll(systemLibDirs);
-                }
-                ArrayList<Throwable> suppressedExceptions = new ArrayList<>();
-                elements = (Object[]) makePathElements.invoke(pathList, libDirs, null, suppressedExceptions);
+        Object[] elements;
+
+        if (Build.VERSION.SDK_INT >= 25) {
+            Method makePathElements = pathList.getClass().getDeclaredMethod("makePathElements", List.class);
+            makePathElements.setAccessible(true);
+
+            Field systemNativeLibDirsField = pathList.getClass().getDeclaredField("systemNativeLibraryDirectories");
+            systemNativeLibDirsField.setAccessible(true);
+            List<File> systemLibDirs = (List<File>) systemNativeLibDirsField.get(pathList);
+            if (systemLibDirs != null) {
+                libDirs.addAll(systemLibDirs);
             }
-            nativeLibraryPathElementsField.set(pathList, elements);
 
+            elements = (Object[]) makePathElements.invoke(pathList, libDirs);
+        } else {
+            Method makePathElements = pathList.getClass().getDeclaredMethod("makePathElements", List.class, File.class, List.class);
+            makePathElements.setAccessible(true);
 
-        } catch (NoSuchFieldException | NoSuchMethodException e) {
-            throw new ReflectiveOperationException("Unable to inject native libraries", e);
+            Field systemNativeLibDirsField = pathList.getClass().getDeclaredField("systemNativeLibraryDirectories");
+            systemNativeLibDirsField.setAccessible(true);
+            List<File> systemLibDirs = (List<File>) systemNativeLibDirsField.get(pathList);
+            if (systemLibDirs != null) {
+                libDirs.addAll(systemLibDirs);
+            }
+            ArrayList<Throwable> suppressedExceptions = new ArrayList<>();
+            elements = (Object[]) makePathElements.invoke(pathList, libDirs, null, suppressedExceptions);
         }
+        nativeLibraryPathElementsField.set(pathList, elements);
     }
 
     public static void copyFileFromJar(String jar, String src, File dst) throws IOException {
@@ -103,7 +139,8 @@ public class Utils {
         }
     }
 
-    public static void copyFolderFromJar(String jar, String src, File dst) throws IOException {
+    public static int copyFolderFromJar(String jar, String src, File dst) throws IOException {
+        int copied = 0;
         try (JarFile j = new JarFile(jar)) {
             Enumeration<JarEntry> e = j.entries();
             while (e.hasMoreElements()) {
@@ -117,24 +154,46 @@ public class Utils {
                      OutputStream out = new FileOutputStream(outFile)) {
                     copyStream(in, out);
                 }
+                copied++;
             }
         }
+        return copied;
     }
 
-    public static void copyFile(File src, File dst) throws IOException {
+    public static long copyFile(File src, File dst) throws IOException {
         if (!dst.getParentFile().exists()) dst.getParentFile().mkdirs();
         try (InputStream in = new FileInputStream(src);
              OutputStream out = new FileOutputStream(dst)) {
-            copyStream(in, out);
+            return copyStream(in, out);
         }
     }
 
-    public static void copyStream(InputStream in, OutputStream out) throws IOException {
+    /** {@code <target>.tmp}, to be written and then moved over target with {@link #replaceFile}. */
+    public static File tempFileFor(File target) {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+        return new File(target.getPath() + ".tmp");
+    }
+
+    /** Renames tmp over target, so readers see the old file or the new one, never half of it. */
+    public static void replaceFile(File tmp, File target) throws IOException {
+        if (tmp.renameTo(target)) return;
+        target.delete();
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + target);
+        }
+    }
+
+    public static long copyStream(InputStream in, OutputStream out) throws IOException {
         byte[] buf = new byte[8192];
+        long total = 0;
         int len;
         while ((len = in.read(buf)) != -1) {
             out.write(buf, 0, len);
+            total += len;
         }
+        return total;
     }
 
     public static byte[] readAllBytes(File file) throws IOException {
@@ -149,6 +208,55 @@ public class Utils {
     }
     }
     
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = hex[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = hex[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Drops an asset path added with addAssetPath. Only possible through the
+     * ApkAssets API (Android 9+); returns false when it could not be removed.
+     */
+    public static boolean removeAssetOverride(AssetManager mgr, String packagePath) {
+        try {
+            Method getApkAssets = AssetManager.class.getDeclaredMethod("getApkAssets");
+            getApkAssets.setAccessible(true);
+            Object[] current = (Object[]) getApkAssets.invoke(mgr);
+            Class<?> apkAssetsClass = current.getClass().getComponentType();
+            Method getAssetPath = apkAssetsClass.getDeclaredMethod("getAssetPath");
+            getAssetPath.setAccessible(true);
+
+            List<Object> kept = new ArrayList<>();
+            for (Object a : current) {
+                if (!packagePath.equals(getAssetPath.invoke(a))) kept.add(a);
+            }
+            if (kept.size() == current.length) return false;
+
+            Object updated = Array.newInstance(apkAssetsClass, kept.size());
+            for (int i = 0; i < kept.size(); i++) Array.set(updated, i, kept.get(i));
+            Method setApkAssets = AssetManager.class.getDeclaredMethod("setApkAssets", updated.getClass(), boolean.class);
+            setApkAssets.setAccessible(true);
+            setApkAssets.invoke(mgr, updated, true);
+            return true;
+        } catch (Throwable t) {
+            Logger.get().w("Unable to remove asset path " + packagePath + ": " + t);
+            return false;
+        }
+    }
+
     public static void addAssetOverride(AssetManager mgr, String packagePath) {  
       try {  
         Method m = AssetManager.class.getMethod("addAssetPath", String.class);  